@@ -0,0 +1,35 @@
+#!/bin/sh
+# Runs the emulator from the command line. Takes the same options as Launcher; run with --help.
+#
+# Start-up time matters for short runs (e.g. scripted runs with --frontend none), so this uses
+# a class data sharing archive if there is one. To make the archive, run once with:
+#   ./chip8.sh --make-cds ROM_FILE
+# which packs the classes into chip8.jar (class data sharing only works with jars), then does a
+# short headless run and saves the classes it loaded to chip8.jsa. This needs Java 13 or later.
+#
+# If any class under CHIP8_CLASSES is newer than chip8.jar (i.e. it was recompiled since), the
+# archive is out of date and the classes are run directly instead; run --make-cds again to update it.
+#
+# CHIP8_CLASSES can be set to where the compiled classes are (default: bin).
+
+DIR=$(cd "$(dirname "$0")" && pwd)
+CLASSES=${CHIP8_CLASSES:-$DIR/bin}
+JAR=$DIR/chip8.jar
+JSA=$DIR/chip8.jsa
+
+# Short runs don't live long enough for the optimizing compiler or a big GC to pay off
+JAVA_OPTS="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC $JAVA_OPTS"
+
+if [ "$1" = "--make-cds" ]; then
+	shift
+	rm -f "$JSA"
+	jar cf "$JAR" -C "$CLASSES" . || exit 1
+	exec java $JAVA_OPTS -XX:ArchiveClassesAtExit="$JSA" -cp "$JAR" devmas.chip8.Launcher \
+		--frontend none --unthrottled --max-frames 60 "$@"
+fi
+
+if [ -f "$JAR" ] && [ -f "$JSA" ] &&
+		[ -z "$(find "$CLASSES" -newer "$JAR" -name '*.class' 2>/dev/null | head -1)" ]; then
+	exec java $JAVA_OPTS -XX:SharedArchiveFile="$JSA" -Xshare:auto -cp "$JAR" devmas.chip8.Launcher "$@"
+fi
+exec java $JAVA_OPTS -cp "$CLASSES" devmas.chip8.Launcher "$@"
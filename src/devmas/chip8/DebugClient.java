@@ -0,0 +1,64 @@
+package devmas.chip8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/** A command line client for the Debugger. It sends each line typed to the emulator and
+ * prints whatever comes back, including "break at ..." messages when the emulator stops.
+ *
+ * Usage: DebugClient [port]
+ *
+ * Commands:
+ *   break ADDR, delete ADDR, cond ADDR Vx OP VALUE (OP is ==, !=, < or >),
+ *   watch r|w|rw ADDR [LEN], unwatch r|w|rw ADDR [LEN], watchi on|off, clear,
+ *   pause, step, next, continue, regs, mem ADDR [LEN], detach
+ * All numbers are in hex. */
+public class DebugClient {
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Debugger.DEFAULT_PORT;
+		
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		
+		//Print everything the debugger sends on a separate thread, since break messages
+		// can arrive at any time.
+		final InputStream fromEmu = socket.getInputStream();
+		Thread reader = new Thread("Debugger output") {
+			@Override
+			public void run() {
+				try {
+					BufferedReader in = new BufferedReader(new InputStreamReader(fromEmu, "UTF-8"));
+					String line;
+					while ((line = in.readLine()) != null) System.out.println(line);
+				} catch (IOException e) {
+					//The socket was closed; nothing left to print
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = in.readLine()) != null) {
+			out.println(line);
+			if (line.trim().equals("detach")) break;
+		}
+		
+		//Let the debugger finish replying before closing
+		socket.shutdownOutput();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		socket.close();
+	}
+	
+}
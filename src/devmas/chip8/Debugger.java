@@ -0,0 +1,413 @@
+package devmas.chip8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A small debugger for the emulator. It keeps breakpoints and watchpoints in bitsets (one bit
+ * per memory address) so that checking them costs a single lookup per instruction, and the
+ * emulator doesn't check anything at all while nothing is set.
+ *
+ * The debugger is driven by a line based text protocol on a local socket, so a client (see
+ * DebugClient) can attach and detach at any time while the emulator keeps running. */
+public class Debugger {
+
+	/** The default port the debugger listens on */
+	public static final int DEFAULT_PORT = 0xC8D8;
+
+	/** The emulator being debugged */
+	private final Emulator emu;
+
+	/** Bitsets over the 4096 bytes of RAM. Bit n of word n/64 is set if address n is watched. */
+	private final long[] pcBreaks = new long[64];
+	private final long[] readWatches = new long[64];
+	private final long[] writeWatches = new long[64];
+
+	/** Conditions on the registers for conditional breakpoints, keyed by the breakpoint address */
+	private final Map<Integer, List<Condition>> conditions = new HashMap<Integer, List<Condition>>();
+
+	/** Whether to break when the I register is changed */
+	private boolean watchIReg;
+
+	/** Whether any memory watchpoints are set. Saves looking at the watch bitsets for most opcodes. */
+	private boolean anyWatches;
+
+	/** Break before the next instruction, no matter what it is (single-step) */
+	private boolean stepping;
+
+	/** For stepping over a subroutine call: where to break and the stack pointer it must have.
+	 * A returnPc of -1 means we are not stepping over anything. */
+	private int returnPc = -1, returnSp;
+
+	/** True if the emulator needs to call check() before each instruction. This is only false
+	 * when there are no breakpoints, no watchpoints and no step pending. */
+	volatile boolean armed;
+
+	/** True while the emulator thread is stopped inside check() */
+	private boolean paused;
+
+	/** The currently attached client, or null */
+	private PrintWriter client;
+
+	public Debugger(Emulator emu) {
+		this.emu = emu;
+	}
+
+
+	/** Called by the emulator before executing an opcode, but only while the debugger is armed.
+	 * Blocks the emulator thread if a breakpoint or watchpoint is hit until the client resumes.
+	 * Deciding to break and pausing happen under the one lock, so a continue or step sent in
+	 * between can't be lost. */
+	synchronized void check(short opcode) {
+		String reason = getBreakReason(emu.pc & 0xFFF, opcode);
+		if (reason == null) return;
+		//Whatever we broke for, a step or step over still pending is done with
+		stepping = false;
+		returnPc = -1;
+		rearm();
+		//Nobody would be there to resume us
+		if (client != null) suspend(reason);
+	}
+
+	/** Returns why we should break before executing the opcode at pc, or null if we shouldn't */
+	private String getBreakReason(int pc, short opcode) {
+
+		if (stepping) {
+			stepping = false;
+			rearm();
+			return "step";
+		}
+
+		if (returnPc == pc && returnSp == emu.sp) {
+			returnPc = -1;
+			rearm();
+			return "step over";
+		}
+
+		if (isSet(pcBreaks, pc)) {
+			List<Condition> conds = conditions.get(pc);
+			if (conds == null) return "breakpoint";
+			for (Condition c : conds) {
+				if (c.test(emu.registers)) return "breakpoint if "+c;
+			}
+		}
+
+		if (!anyWatches && !watchIReg) return null;
+
+		//Only a handful of opcodes touch memory or I. Work out which range they touch.
+		int reg = (opcode & 0x0F00) >> 8;
+		int start = emu.iReg & 0xFFF;
+		switch (opcode & 0xF000) {
+		case 0xA000:
+			if (watchIReg) return "I changed";
+			break;
+		case 0xD000:
+			//DRW reads the sprite data from [I]
+			if (isSet(readWatches, start, opcode & 0x000F)) return "read at 0x"+Integer.toHexString(start);
+			break;
+		case 0xF000:
+			switch (opcode & 0x00FF) {
+			case 0x1E:
+			case 0x29:
+				if (watchIReg) return "I changed";
+				break;
+			case 0x33:
+				if (isSet(writeWatches, start, 3)) return "write at 0x"+Integer.toHexString(start);
+				break;
+			case 0x55:
+				if (isSet(writeWatches, start, reg+1)) return "write at 0x"+Integer.toHexString(start);
+				break;
+			case 0x65:
+				if (isSet(readWatches, start, reg+1)) return "read at 0x"+Integer.toHexString(start);
+				break;
+			}
+			break;
+		}
+		return null;
+	}
+
+	/** Stops the emulator thread until the client tells it to continue. Must be called with the
+	 * lock held. */
+	private void suspend(String reason) {
+		paused = true;
+		send("break at 0x"+Integer.toHexString(emu.pc & 0xFFF)+" ("+reason+")");
+		while (paused) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/** Lets the emulator thread run again if it is stopped. */
+	private synchronized void resume() {
+		paused = false;
+		notifyAll();
+	}
+
+	/** Works out whether the emulator still needs to call check() */
+	private void rearm() {
+		anyWatches = !isEmpty(readWatches) || !isEmpty(writeWatches);
+		armed = stepping || returnPc != -1 || watchIReg || anyWatches || !isEmpty(pcBreaks);
+	}
+
+
+	/** Starts listening for clients on the loopback interface. Clients are served one at a time
+	 * on a daemon thread, so this never holds up the emulator. */
+	public void listen(int port) throws IOException {
+		final ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+		Thread t = new Thread("Chip-8 debugger") {
+			@Override
+			public void run() {
+				while (true) {
+					try (Socket socket = server.accept()) {
+						serve(socket);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		System.out.println("Debugger listening on port "+server.getLocalPort());
+	}
+
+	/** Reads commands from a client until it detaches. */
+	private void serve(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+		synchronized (this) {
+			client = out;
+			if (paused) send("break at 0x"+Integer.toHexString(emu.pc & 0xFFF)+" (paused)");
+		}
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				if (line.equals("detach")) break;
+				try {
+					out.println(execute(line.split("\\s+")));
+				} catch (RuntimeException e) {
+					out.println("error: "+e.getMessage());
+				}
+			}
+		} finally {
+			//Never leave the emulator stuck once nobody is around to resume it
+			synchronized (this) {
+				client = null;
+				stepping = false;
+				returnPc = -1;
+				rearm();
+			}
+			resume();
+		}
+	}
+
+	/** Sends a line to the attached client, if any. */
+	private synchronized void send(String line) {
+		if (client != null) client.println(line);
+	}
+
+	/** Runs one command and returns the reply. */
+	synchronized String execute(String[] cmd) {
+		switch (cmd[0]) {
+		case "break":
+		case "b":
+			//break <addr>
+			int addr = parseAddress(cmd[1]);
+			set(pcBreaks, addr, true);
+			conditions.remove(addr);
+			break;
+		case "cond":
+			//cond <addr> V<x> <op> <value>  e.g. "cond 2A0 V3 == 1F"
+			addr = parseAddress(cmd[1]);
+			Condition c = new Condition(cmd[2], cmd[3], cmd[4]);
+			if (isSet(pcBreaks, addr) && !conditions.containsKey(addr)) {
+				return "error: there is already an unconditional breakpoint at "+Integer.toHexString(addr)
+					+"; delete it first";
+			}
+			List<Condition> conds = conditions.get(addr);
+			if (conds == null) conditions.put(addr, conds = new ArrayList<Condition>());
+			conds.add(c);
+			set(pcBreaks, addr, true);
+			break;
+		case "delete":
+		case "d":
+			//delete <addr>
+			addr = parseAddress(cmd[1]);
+			set(pcBreaks, addr, false);
+			conditions.remove(addr);
+			break;
+		case "watch":
+			//watch r|w|rw <addr> [length]
+			setWatch(cmd, true);
+			break;
+		case "unwatch":
+			//unwatch r|w|rw <addr> [length]
+			setWatch(cmd, false);
+			break;
+		case "watchi":
+			//watchi on|off
+			watchIReg = cmd.length < 2 || cmd[1].equals("on");
+			break;
+		case "step":
+		case "s":
+			stepping = true;
+			rearm();
+			resume();
+			break;
+		case "next":
+		case "n":
+			//Like step, except a subroutine call (2nnn) runs until it returns
+			int pc = emu.pc & 0xFFF;
+			if ((emu.memory[pc] & 0xF0) == 0x20) {
+				returnPc = pc + 2;
+				returnSp = emu.sp;
+			}
+			else stepping = true;
+			rearm();
+			resume();
+			break;
+		case "pause":
+			stepping = true;
+			rearm();
+			break;
+		case "continue":
+		case "c":
+			resume();
+			break;
+		case "regs":
+			return registerString();
+		case "mem":
+			//mem <addr> [length]
+			return memoryString(parseAddress(cmd[1]), cmd.length > 2 ? parseAddress(cmd[2]) : 16);
+		case "clear":
+			clear(pcBreaks);
+			clear(readWatches);
+			clear(writeWatches);
+			conditions.clear();
+			watchIReg = false;
+			stepping = false;
+			returnPc = -1;
+			break;
+		default:
+			return "error: unknown command "+cmd[0];
+		}
+		rearm();
+		return "ok";
+	}
+
+	/** Handles the arguments of the watch and unwatch commands */
+	private void setWatch(String[] cmd, boolean on) {
+		int addr = parseAddress(cmd[2]);
+		int length = cmd.length > 3 ? parseAddress(cmd[3]) : 1;
+		for (int i = 0; i < length; i++) {
+			if (cmd[1].contains("r")) set(readWatches, addr+i, on);
+			if (cmd[1].contains("w")) set(writeWatches, addr+i, on);
+		}
+	}
+
+	private String registerString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("PC=").append(Integer.toHexString(emu.pc & 0xFFFF));
+		sb.append(" I=").append(Integer.toHexString(emu.iReg & 0xFFFF));
+		sb.append(" SP=").append(emu.sp);
+		sb.append(" DT=").append(emu.delayTimer & 0xFF);
+		sb.append(" ST=").append(emu.soundTimer & 0xFF);
+		for (int i = 0; i < emu.registers.length; i++) {
+			sb.append(" V").append(Integer.toHexString(i).toUpperCase()).append('=');
+			sb.append(Integer.toHexString(emu.registers[i] & 0xFF));
+		}
+		return sb.toString();
+	}
+
+	private String memoryString(int addr, int length) {
+		StringBuilder sb = new StringBuilder(Integer.toHexString(addr)).append(':');
+		for (int i = addr; i < addr+length && i < emu.memory.length; i++) {
+			sb.append(' ').append(Integer.toHexString((emu.memory[i] & 0xFF) | 0x100).substring(1));
+		}
+		return sb.toString();
+	}
+
+	/** Parses a hex address, with or without a leading "0x" */
+	private static int parseAddress(String s) {
+		if (s.startsWith("0x")) s = s.substring(2);
+		int addr = Integer.parseInt(s, 16);
+		if (addr < 0 || addr > 0xFFF) throw new RuntimeException("Address out of range: "+s);
+		return addr;
+	}
+
+
+	private static boolean isSet(long[] bits, int addr) {
+		//Shifting a long only uses the low 6 bits of the shift amount, so addr acts as addr % 64
+		return (bits[addr >>> 6] >>> addr & 1L) != 0;
+	}
+
+	private static boolean isSet(long[] bits, int addr, int length) {
+		for (int i = addr; i < addr+length; i++) {
+			if (isSet(bits, i & 0xFFF)) return true;
+		}
+		return false;
+	}
+
+	private static void set(long[] bits, int addr, boolean on) {
+		if (on) bits[addr >>> 6] |= 1L << addr;
+		else bits[addr >>> 6] &= ~(1L << addr);
+	}
+
+	private static boolean isEmpty(long[] bits) {
+		for (long l : bits) if (l != 0) return false;
+		return true;
+	}
+
+	private static void clear(long[] bits) {
+		for (int i = 0; i < bits.length; i++) bits[i] = 0;
+	}
+
+
+	/** A comparison of a register against a value, like "V3 == 1F" */
+	static class Condition {
+		final int reg;
+		final String op;
+		final int value;
+
+		Condition(String reg, String op, String value) {
+			if (!reg.startsWith("V") && !reg.startsWith("v")) throw new RuntimeException("Not a register: "+reg);
+			this.reg = Integer.parseInt(reg.substring(1), 16);
+			this.op = op;
+			this.value = Integer.parseInt(value, 16);
+			if (this.reg < 0 || this.reg > 0xF) throw new RuntimeException("Not a register: "+reg);
+			if (this.value < 0 || this.value > 0xFF) throw new RuntimeException("Value out of range: "+value);
+			if (!op.equals("==") && !op.equals("!=") && !op.equals("<") && !op.equals(">"))
+				throw new RuntimeException("Unknown comparison: "+op);
+		}
+
+		boolean test(byte[] registers) {
+			int v = registers[reg] & 0xFF;
+			switch (op) {
+			case "==": return v == value;
+			case "!=": return v != value;
+			case "<": return v < value;
+			default: return v > value;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "V"+Integer.toHexString(reg).toUpperCase()+" "+op+" "+Integer.toHexString(value);
+		}
+	}
+
+}
@@ -1,6 +1,5 @@
 package devmas.chip8;
 
-import java.awt.Toolkit;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -38,9 +37,31 @@ public class Emulator {
 	/** 1/60th of a second */
 	public static final long REFRESH_RATE = (int)(1000000000/60);
 	
+	/** Sleeps until the frame after the one that started at frameStart (System.nanoTime()), and
+	 * returns when that frame starts. Frames keep to a steady 60 a second even if one runs late. */
+	public static long waitForNextFrame(long frameStart) throws InterruptedException {
+		long nextFrame = frameStart + REFRESH_RATE;
+		long sleep = nextFrame - System.nanoTime();
+		if (sleep > 0) Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+		return nextFrame;
+	}
+	
 	/** For storing the last button press state so that we can see if a button down event happens */
 	public char lastButtons;
 	
+	/** The state of the random number generator used by the RAND instruction. Never 0. */
+	public long seed = System.nanoTime() | 1;
+	
+	/** Whether to print every instruction to the console as it runs. This is very slow, so it
+	 * should be turned off when running many frames at once (e.g. Netplay re-running frames). */
+	public boolean trace = true;
+	
+	/** If not null, this is told when the buttons are read and the screen changes */
+	public LatencyTracker latency;
+	
+	/** The debugger attached to this emulator, or null if there isn't one */
+	public Debugger debugger;
+	
 	/** This is the data that is stored at the beginning of RAM. It is actually a font containing
 	 * the numbers 0 - 9 and the letters A - F. */
 	public static final byte[] textData = {
@@ -84,20 +105,57 @@ public class Emulator {
 		//Check to see if it is time to decrement the special timer registers
 		if (System.nanoTime() > nextTime) {
 			nextTime = System.nanoTime() + REFRESH_RATE;
-			if (delayTimer != 0) delayTimer --;
-			if (soundTimer != 0) {
-				soundTimer --;
-			}
+			tickTimers();
 		}
 		
+		execute(buttons);
+		
+		try {
+			Thread.sleep(sleepTime);
+		} catch (InterruptedException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+		
+	}
+	
+	/** Runs one 1/60th of a second frame without looking at the clock: the timers are decremented
+	 * once, then the given number of instructions are executed as fast as possible. Given the same
+	 * state and the same buttons, this always ends up in the same state, which is what Netplay
+	 * relies on to replay frames.
+	 * 
+	 * @param buttons The buttons pressed. Most significant bit: Button 0. Least: Button F
+	 */
+	public void runFrame(char buttons, int cycles) {
+		tickTimers();
+		for (int i = 0; i < cycles; i++) execute(buttons);
+	}
+	
+	/** Decrements the special timer registers. Called every 1/60th of a second. */
+	private void tickTimers() {
+		if (delayTimer != 0) delayTimer --;
+		if (soundTimer != 0) {
+			soundTimer --;
+		}
+	}
+	
+	/** Executes one instruction, without any timing. */
+	private void execute(char buttons) {
+		
 		//Get the opcode.
 		//Note that the opcode is 16 bits, but our RAM is 8 bits.
 		//Therefore, we must take the memory address of pc and pc+1 and OR them together.
 		short opcode = (short) ((memory[pc] << 8) | (memory[pc+1] & 0xff));
 		
+		//Give the debugger a chance to stop us before the instruction runs.
+		//It is only armed while there are breakpoints or watchpoints set.
+		if (debugger != null && debugger.armed) debugger.check(opcode);
+		
 		//Print some data on the screen. 
-		System.out.print("******\nOpcode at 0x" + getHexString(pc) + ": " + getHexString(opcode));
-		System.out.println();
+		if (trace) {
+			System.out.print("******\nOpcode at 0x" + getHexString(pc) + ": " + getHexString(opcode));
+			System.out.println();
+		}
 		
 		//"Category" is the type of instruction it is. For example, a jmp instruction might
 		// be 4xxx and arithmetic might be 8xxx, etc... In order to isolate the category, we
@@ -110,12 +168,13 @@ public class Emulator {
 		case 0x0000:
 			if (opcode == 0x00E0) {
 				//CLS
-				System.out.println("CLS");
+				if (trace) System.out.println("CLS");
+				if (latency != null) latency.screenChanged();
 				for (int i = 0; i < screen.length; i++) screen[i] = 0;
 			}
 			else if (opcode == 0x00EE) {
 				//RET return from subroutine
-				System.out.println("RET");
+				if (trace) System.out.println("RET");
 				pc = stack[--sp];
 			}
 			//TODO: Remove this, because other older computer systems might use system calls here
@@ -123,45 +182,45 @@ public class Emulator {
 			break;
 		case 0x1000:
 			//JMP 1xxx
-			System.out.println("JMP "+getHexString((short) (opcode & 0x0FFF)));
+			if (trace) System.out.println("JMP "+getHexString((short) (opcode & 0x0FFF)));
 			if ((opcode & 0x0FFF) == pc) throw new RuntimeException("Infinite loop!");
 			pc = (short) ((opcode & 0x0FFF) - 2); //-2 because we will add 2 later
 			break;
 		case 0x2000:
 			//JSR 2xxx
-			System.out.println("JSR "+getHexString((short) (opcode & 0x0FFF)));
+			if (trace) System.out.println("JSR "+getHexString((short) (opcode & 0x0FFF)));
 			stack[sp++] = pc;
 			pc = (short) ((opcode & 0x0FFF) - 2); //-2 because we will add 2 later
 			break;
 		case 0x3000:
 			//SE skip next inst if equal 3xyy Register[x] == yy
 			int reg = (opcode & 0x0F00) >> 8;
-				System.out.println("SE V"+reg+","+getHexString((short) (opcode & 0x00FF)));
+				if (trace) System.out.println("SE V"+reg+","+getHexString((short) (opcode & 0x00FF)));
 			if ((registers[reg] & 0xFF) == (opcode & 0xFF)) pc += 2;
 			break;
 		case 0x4000:
 			//SNE skip next inst if not equal 4xyy Register[x] != yy
 			reg = (opcode & 0x0F00) >> 8;
-			System.out.println("SNE V"+reg+","+getHexString((short) (opcode & 0x00FF)));
+			if (trace) System.out.println("SNE V"+reg+","+getHexString((short) (opcode & 0x00FF)));
 			if ((registers[reg] & 0xFF) != (opcode & 0xFF)) pc += 2;
 			break;
 		case 0x5000:
 			//SE skip next inst if equal 5xy0 Register[x] == Register[y]
 			reg = (opcode & 0x0F00) >> 8;
 			int reg2 = (opcode & 0x00F0) >> 4;
-			System.out.println("SE V"+reg+", V"+reg2);
+			if (trace) System.out.println("SE V"+reg+", V"+reg2);
 			if (registers[reg] == registers[reg2]) pc += 2;
 			break;
 		case 0x6000:
 			//LD 6xyy Register[x] = yy
 			reg = (opcode & 0x0F00) >> 8;
-			System.out.println("LD V"+reg+","+getHexString((short) (opcode & 0x00FF)));
+			if (trace) System.out.println("LD V"+reg+","+getHexString((short) (opcode & 0x00FF)));
 			registers[reg] = (byte) (opcode & 0xFF); //probably don't need to do the anding
 			break;
 		case 0x7000:
 			//ADD 7xyy Register[x] += yy
 			reg = (opcode & 0x0F00) >> 8;
-			System.out.println("ADD V"+reg+","+getHexString((short) (opcode & 0x00FF)));
+			if (trace) System.out.println("ADD V"+reg+","+getHexString((short) (opcode & 0x00FF)));
 			registers[reg] += (byte) (opcode & 0xFF); //probably don't need to do the anding
 			break;
 		case 0x8000:
@@ -174,27 +233,27 @@ public class Emulator {
 			switch (opcode & 0x000F) {
 			case 0:
 				//ld 8xy0 Vx = Vy
-				System.out.println("LD V"+reg+", V"+reg2);
+				if (trace) System.out.println("LD V"+reg+", V"+reg2);
 				registers[reg] = registers[reg2];
 				break;
 			case 1:
 				//or 8xy1 Vx | Vy
-				System.out.println("OR V"+reg+", V"+reg2);
+				if (trace) System.out.println("OR V"+reg+", V"+reg2);
 				registers[reg] = (byte) (registers[reg] | registers[reg2]);
 				break;
 			case 2:
 				//and 8xy2 Vx & Vy
-				System.out.println("AND V"+reg+", V"+reg2);
+				if (trace) System.out.println("AND V"+reg+", V"+reg2);
 				registers[reg] = (byte) (registers[reg] & registers[reg2]);
 				break;
 			case 3:
 				//xor 8xy3 Vx ^ Vy
-				System.out.println("XOR V"+reg+", V"+reg2);
+				if (trace) System.out.println("XOR V"+reg+", V"+reg2);
 				registers[reg] = (byte) (registers[reg] ^ registers[reg2]);
 				break;
 			case 4:
 				//add 8xy4 Vx + Vy
-				System.out.println("ADD V"+reg+", V"+reg2);
+				if (trace) System.out.println("ADD V"+reg+", V"+reg2);
 				int result = (registers[reg] & 0xFF) + (registers[reg2] & 0xFF);
 				if (result > 255) registers[0xF] = 1;
 				else registers[0xF] = 0;
@@ -202,27 +261,27 @@ public class Emulator {
 				break;
 			case 5:
 				//sub 8xy5 Vx - Vy
-				System.out.println("SUB V"+reg+", V"+reg2);
+				if (trace) System.out.println("SUB V"+reg+", V"+reg2);
 				if ((registers[reg] & 0xFF) > (registers[reg2] & 0xFF)) registers[0xF] = 1;
 				else registers[0xF] = 0;
 				registers[reg] = (byte) ((registers[reg] & 0xFF) - (registers[reg2] & 0xFF));
 				break;
 			case 6:
 				//shr 8xy6 Vx >>> 1 (and carry is set to VF)
-				System.out.println("SHR V"+reg);
+				if (trace) System.out.println("SHR V"+reg);
 				registers[0xF] = (byte) (registers[reg] & 0x01);
 				registers[reg] = (byte) (registers[reg] >>> 1);
 				break;
 			case 7:
 				//sub 8xy7 Vy - Vx (store in Vx)
-				System.out.println("SUBN V"+reg2+", V"+reg);
+				if (trace) System.out.println("SUBN V"+reg2+", V"+reg);
 				if ((registers[reg2] & 0xFF) > (registers[reg] & 0xFF)) registers[0xF] = 1;
 				else registers[0xF] = 0;
 				registers[reg] = (byte) ((registers[reg2] & 0xFF) - (registers[reg] & 0xFF));
 				break;
 			case 0xE:
 				//shl 8xy6 Vx << 1 (and carry is set to VF)
-				System.out.println("SHL V"+reg);
+				if (trace) System.out.println("SHL V"+reg);
 				registers[0xF] = (byte) ((registers[reg] & 0x80) >> 7);
 				registers[reg] = (byte) (registers[reg] << 1);
 				break;
@@ -235,26 +294,27 @@ public class Emulator {
 			//sne 9xy0 if vx != vy
 			reg = (opcode & 0x0F00) >> 8;
 			reg2 = (opcode & 0x00F0) >> 4;
-			System.out.println("SNE V"+reg+", V"+reg2);
+			if (trace) System.out.println("SNE V"+reg+", V"+reg2);
 			if (registers[reg] != registers[reg2]) pc += 2;
 			break;
 		case 0xA000:
 			//ld I, xxx
-			System.out.println("LD I, "+(opcode&0x0FFF));
+			if (trace) System.out.println("LD I, "+(opcode&0x0FFF));
 			iReg = (short) (opcode & 0x0FFF);
 			break;
 		case 0xB000:
 			//jmp Bxxx v0 + xxx
-			System.out.println("JMP v0 + "+(opcode&0x0FFF));
+			if (trace) System.out.println("JMP v0 + "+(opcode&0x0FFF));
 			pc = (short) ((registers[0] & 0xFF)+(opcode & 0xFFF) - 2);
 		case 0xC000:
 			//RAND Cxyy creates random number + stores in register x after ANDing with yy
 			reg = (opcode & 0x0F00) >> 8;
-			registers[reg] = (byte) ((int)(System.nanoTime()) & opcode & 0xFF);
+			registers[reg] = (byte) (nextRandom() & opcode & 0xFF);
 			break;
 		case 0xD000:
 			//DRW Vx, Vy, z  Dxyz  Draws a sprite at Vx,Vy with the sprite data being z bytes.
 			drawSprite(opcode);
+			if (latency != null) latency.screenChanged();
 			break;
 		case 0xE000:
 			//Two opcodes dealing with input.
@@ -265,7 +325,8 @@ public class Emulator {
 				int button = registers[reg];
 				if (button > 15) throw new RuntimeException("Invalid button!");
 				if ((buttons >>> button & 0x1) == 1) {
-					System.out.println("Check for button "+button+" passed; skipping instruction");
+					if (trace) System.out.println("Check for button "+button+" passed; skipping instruction");
+					if (latency != null) latency.buttonsRead(1 << button);
 					pc += 2;
 				}
 				break;
@@ -274,9 +335,10 @@ public class Emulator {
 				button = registers[reg];
 				if (button > 15) throw new RuntimeException("Invalid button!");
 				if ((buttons >>> button & 0x1) == 0) {
-					System.out.println("Check for no button "+button+" passed; skipping instruction");
+					if (trace) System.out.println("Check for no button "+button+" passed; skipping instruction");
 					pc += 2;
 				}
+				else if (latency != null) latency.buttonsRead(1 << button);
 				break;
 			default:
 				unimplemented(opcode);
@@ -295,13 +357,14 @@ public class Emulator {
 				//LD Vx, K (Halts CPU until key press, then stores key in register) Fx0A
 				int buttonsDown = (lastButtons ^ buttons) & buttons;
 				if (buttonsDown != 0) {
+					if (latency != null) latency.buttonsRead(buttonsDown);
 					byte buttonPressed = 0;
 					while ((buttonsDown & 1) == 0) {
 						buttonsDown = (char) (buttonsDown >>> 1);
 						buttonPressed++;
 						if (buttonPressed > 15) throw new RuntimeException("Uh, buttons failure!");
 					}
-					System.out.println("Button pressed: "+buttonPressed);
+					if (trace) System.out.println("Button pressed: "+buttonPressed);
 					registers[reg] = buttonPressed;
 				}
 				else pc -= 2; //reset the PC to redo the instruction, effectively halting CPU
@@ -358,13 +421,78 @@ public class Emulator {
 		//Set the program counter to point to the next instruction
 		pc += 2;
 		
-		try {
-			Thread.sleep(sleepTime);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	}
+	
+	/** Returns the next number from the random number generator (xorshift). Unlike the clock,
+	 * this gives the same numbers every time for the same seed. */
+	private int nextRandom() {
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		return (int) seed;
+	}
+	
+	/** Copies the whole machine state into the snapshot so that it can be restored later. */
+	public void saveState(State s) {
+		System.arraycopy(screen, 0, s.screen, 0, screen.length);
+		System.arraycopy(memory, 0, s.memory, 0, memory.length);
+		System.arraycopy(registers, 0, s.registers, 0, registers.length);
+		System.arraycopy(stack, 0, s.stack, 0, stack.length);
+		s.sp = sp;
+		s.pc = pc;
+		s.iReg = iReg;
+		s.delayTimer = delayTimer;
+		s.soundTimer = soundTimer;
+		s.lastButtons = lastButtons;
+		s.seed = seed;
+	}
+	
+	/** Restores the machine state from a snapshot made by saveState. The screen array is copied
+	 * into rather than replaced, so a window drawing it doesn't need to be told. */
+	public void loadState(State s) {
+		System.arraycopy(s.screen, 0, screen, 0, screen.length);
+		System.arraycopy(s.memory, 0, memory, 0, memory.length);
+		System.arraycopy(s.registers, 0, registers, 0, registers.length);
+		System.arraycopy(s.stack, 0, stack, 0, stack.length);
+		sp = s.sp;
+		pc = s.pc;
+		iReg = s.iReg;
+		delayTimer = s.delayTimer;
+		soundTimer = s.soundTimer;
+		lastButtons = s.lastButtons;
+		seed = s.seed;
+	}
+	
+	/** A snapshot of everything that affects how the emulator runs. Snapshots are meant to be
+	 * allocated once and reused, so saving one doesn't create garbage. */
+	public static class State {
+		final byte[] screen = new byte[256];
+		final byte[] memory = new byte[4096];
+		final byte[] registers = new byte[16];
+		final short[] stack = new short[16];
+		byte sp;
+		short pc;
+		short iReg;
+		byte delayTimer, soundTimer;
+		char lastButtons;
+		long seed;
 		
+		/** Returns a hash of the state (FNV-1a), for checking that two emulators are in sync. */
+		public long hash() {
+			long h = 0xcbf29ce484222325L;
+			for (byte b : screen) h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+			for (byte b : memory) h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+			for (byte b : registers) h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+			for (short s : stack) h = (h ^ (s & 0xFFFF)) * 0x100000001b3L;
+			h = (h ^ (sp & 0xFF)) * 0x100000001b3L;
+			h = (h ^ (pc & 0xFFFF)) * 0x100000001b3L;
+			h = (h ^ (iReg & 0xFFFF)) * 0x100000001b3L;
+			h = (h ^ (delayTimer & 0xFF)) * 0x100000001b3L;
+			h = (h ^ (soundTimer & 0xFF)) * 0x100000001b3L;
+			h = (h ^ lastButtons) * 0x100000001b3L;
+			h = (h ^ seed) * 0x100000001b3L;
+			return h;
+		}
 	}
 	
 	/** Called if an opcode is not defined, either because the program is invalid or because
@@ -397,7 +525,7 @@ public class Emulator {
 		int y = registers[reg2];
 		int spriteLength = opcode & 0x000F;
 		
-		System.out.println("Drawing the following sprite at "+x+","+y+
+		if (trace) System.out.println("Drawing the following sprite at "+x+","+y+
 				"\nSprite size: 8x"+spriteLength+"   Sprite location: "+getHexString(iReg));
 		
 		byte[] spriteData = new byte[spriteLength];
@@ -449,7 +577,7 @@ public class Emulator {
 		}
 		
 		
-		drawSpriteToConsole(spriteData);
+		if (trace) drawSpriteToConsole(spriteData);
 		
 	}
 	
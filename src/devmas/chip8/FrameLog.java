@@ -0,0 +1,130 @@
+package devmas.chip8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** A compact, lossless log of every frame of the screen, which can be played back later.
+ *
+ * Each frame is stored as the XOR of it and the frame before, so everything that didn't change
+ * is zero. That is then run length encoded with a control byte c followed by:
+ *   c < 0x80:  nothing; it stands for c+1 zero bytes
+ *   c >= 0x80: (c & 0x7F)+1 bytes to be copied as they are
+ * until the 256 bytes of the frame are filled. A frame with nothing changed takes 2 bytes.
+ *
+ * Usage: FrameLog FILE  (plays the log back in a window) */
+public class FrameLog {
+
+	/** Written at the start of every log */
+	private static final byte[] MAGIC = { 'C', '8', 'L', 'G', 1 };
+
+	/** Writes a frame log. */
+	public static class Writer implements FrameRecorder.Encoder {
+
+		private final OutputStream out;
+		private final byte[] last = new byte[256];
+		private final byte[] delta = new byte[256];
+
+		public Writer(File file) throws IOException {
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			out.write(MAGIC);
+		}
+
+		@Override
+		public void writeFrame(byte[] screen) throws IOException {
+			for (int i = 0; i < 256; i++) {
+				delta[i] = (byte) (screen[i] ^ last[i]);
+				last[i] = screen[i];
+			}
+
+			int i = 0;
+			while (i < 256) {
+				//Count the zeros starting here
+				int run = 0;
+				while (i+run < 256 && run < 128 && delta[i+run] == 0) run++;
+				if (run > 0) {
+					out.write(run-1);
+					i += run;
+					continue;
+				}
+				//Otherwise copy bytes up to the next pair of zeros (a single zero is cheaper to copy)
+				int end = i;
+				while (end < 256 && end-i < 128 && !(delta[end] == 0 && (end+1 == 256 || delta[end+1] == 0))) end++;
+				out.write(0x80 | (end-i-1));
+				out.write(delta, i, end-i);
+				i = end;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/** Reads a frame log back. */
+	public static class Reader {
+
+		private final DataInputStream in;
+
+		public Reader(InputStream in) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(in));
+			byte[] magic = new byte[MAGIC.length];
+			this.in.readFully(magic);
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (magic[i] != MAGIC[i]) throw new IOException("Not a Chip-8 frame log");
+			}
+		}
+
+		/** Applies the next frame to the screen, which must hold the frame before it (it starts
+		 * out blank). Returns false at the end of the log. */
+		public boolean readFrame(byte[] screen) throws IOException {
+			int c;
+			try {
+				c = in.readUnsignedByte();
+			} catch (EOFException e) {
+				return false;
+			}
+
+			int i = 0;
+			while (true) {
+				//Both kinds of run must stop at the end of the frame
+				int end = i + (c & 0x7F) + 1;
+				if (end > 256) throw new IOException("Corrupt frame log");
+				if (c < 0x80) i = end;
+				else {
+					for (; i < end; i++) screen[i] ^= in.readByte();
+				}
+				if (i == 256) break;
+				c = in.readUnsignedByte();
+			}
+			return true;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+
+	/** Plays a frame log back in a window at 60 frames a second. */
+	public static void main(String[] args) throws Exception {
+		Reader reader = new Reader(new FileInputStream(args[0]));
+		MainWindow win = Main.createWindow(8);
+
+		long nextFrame = System.nanoTime();
+		while (reader.readFrame(win.screen)) {
+			win.repaint();
+			nextFrame = Emulator.waitForNextFrame(nextFrame);
+		}
+		reader.close();
+	}
+
+}
@@ -0,0 +1,137 @@
+package devmas.chip8;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Records the screen every 1/60th of a second.
+ *
+ * Launcher calls capture() once a frame, which only copies the screen into a buffer and puts it
+ * on a queue; the frames are written out by an Encoder on a thread of its own. capture() never waits: if the encoder falls
+ * behind and the queue fills up, frames are dropped according to the Policy, and capture()
+ * returns false so that the caller can slow down if it wants to.
+ *
+ * The recorder's thread is a daemon, so it won't keep the program running: close() must be called
+ * (e.g. from a shutdown hook) or the end of the recording is lost. */
+public class FrameRecorder {
+
+	/** What to do with a new frame when the queue is full */
+	public enum Policy {
+		/** Throw away the new frame */
+		DROP_NEWEST,
+		/** Throw away the oldest frame in the queue to make room for the new one */
+		DROP_OLDEST
+	}
+
+	/** Something that writes frames somewhere, e.g. to a file. Only ever called from the
+	 * recorder's own thread. */
+	public interface Encoder {
+		void writeFrame(byte[] screen) throws IOException;
+		void close() throws IOException;
+	}
+
+	/** Marks the end of the recording in the queue */
+	private static final byte[] END = new byte[0];
+
+	private final Encoder encoder;
+	private final Policy policy;
+
+	/** Frames waiting to be written. It has room for every buffer plus END. */
+	private final ArrayBlockingQueue<byte[]> queue;
+
+	/** Buffers that aren't in use. There is one more buffer than the queue size, so the
+	 * encoder can be writing one while queueSize frames wait. */
+	private final ArrayBlockingQueue<byte[]> free;
+
+	private final Thread thread;
+
+	/** How many frames have been dropped because the encoder couldn't keep up */
+	public volatile int dropped;
+
+	/** Set if the encoder failed. Nothing more gets recorded after that. */
+	private volatile IOException error;
+
+	public FrameRecorder(Encoder encoder, int queueSize, Policy policy) {
+		this.encoder = encoder;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<byte[]>(queueSize + 2);
+		this.free = new ArrayBlockingQueue<byte[]>(queueSize + 1);
+		for (int i = 0; i <= queueSize; i++) free.add(new byte[256]);
+
+		thread = new Thread("Frame recorder") {
+			@Override
+			public void run() {
+				writeFrames();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Creates a recorder for a file, choosing the format from its name: ".gif" for an animated
+	 * GIF, ".c8log" for a FrameLog, or anything else for a directory of PNG files. */
+	public static FrameRecorder open(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		Encoder encoder;
+		if (name.endsWith(".gif")) encoder = new GifEncoder(file, 4);
+		else if (name.endsWith(".c8log")) encoder = new FrameLog.Writer(file);
+		else encoder = new PngEncoder(file, 4);
+		return new FrameRecorder(encoder, 120, Policy.DROP_OLDEST);
+	}
+
+
+	/** Queues a copy of the screen to be written. Never blocks. Returns false if a frame had to
+	 * be dropped because the queue was full. */
+	public boolean capture(byte[] screen) {
+		if (error != null) return false;
+
+		boolean ok = true;
+		byte[] buf = free.poll();
+		if (buf == null) {
+			if (policy == Policy.DROP_OLDEST) buf = queue.poll();
+			dropped++;
+			ok = false;
+			if (buf == null) return false;
+		}
+		System.arraycopy(screen, 0, buf, 0, 256);
+		queue.add(buf);
+		return ok;
+	}
+
+	/** Writes out the frames still queued, then closes the encoder. */
+	public void close() throws IOException {
+		try {
+			//The queue always has room for END unless the thread died, in which case don't bother
+			while (thread.isAlive() && !queue.offer(END, 100, TimeUnit.MILLISECONDS));
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (error != null) throw error;
+	}
+
+	/** The recorder thread: writes frames until told to stop. */
+	private void writeFrames() {
+		try {
+			while (true) {
+				byte[] buf = queue.take();
+				if (buf == END) break;
+				encoder.writeFrame(buf);
+				free.add(buf);
+			}
+		} catch (IOException e) {
+			error = e;
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			//Stop recording
+		} finally {
+			try {
+				encoder.close();
+			} catch (IOException e) {
+				if (error == null) error = e;
+			}
+		}
+	}
+
+}
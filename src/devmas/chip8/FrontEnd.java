@@ -0,0 +1,20 @@
+package devmas.chip8;
+
+import java.io.IOException;
+
+/** Something that shows the emulator's screen and reads its buttons, like a window or a
+ * terminal. Launcher calls these once every frame. */
+public interface FrontEnd {
+	
+	/** Returns the buttons currently held. Bit n is set if button n is down. */
+	char getButtons();
+	
+	/** Shows the screen as it is at the end of a frame. */
+	void present(byte[] screen) throws IOException;
+	
+	/** Whether the user has asked to quit */
+	boolean isClosed();
+	
+	void close() throws IOException;
+	
+}
@@ -0,0 +1,184 @@
+package devmas.chip8;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/** Writes frames of the screen as an animated GIF.
+ *
+ * GIF frame delays are in 1/100ths of a second, and most viewers don't honour delays shorter
+ * than 2/100ths, so frames that don't change the picture just make the previous frame last
+ * longer, and a frame that would be shown for less than 2/100ths is replaced by the next one. */
+public class GifEncoder implements FrameRecorder.Encoder {
+
+	/** The smallest frame delay worth writing, in 1/100ths of a second */
+	private static final int MIN_DELAY = 2;
+
+	/** The LZW code size. It can't be less than 2 even though we only use two colours. */
+	private static final int MIN_CODE_SIZE = 2;
+	private static final int CLEAR = 1 << MIN_CODE_SIZE, EOI = CLEAR + 1;
+
+	private final OutputStream out;
+	private final int scale, width, height;
+
+	/** The frame waiting to be written, since we don't know how long it lasts until the picture changes */
+	private final byte[] pending = new byte[256];
+	private boolean hasPending;
+
+	/** The frame number (at 60 frames a second) at which the pending frame started, and now */
+	private long pendingStart, frameCount;
+
+	/** Scratch space for the pixels of a frame and the LZW table */
+	private final byte[] pixels;
+	private final short[] table = new short[4096 << MIN_CODE_SIZE];
+
+	/** The sub-block being filled, and the bits not yet written to it */
+	private final byte[] block = new byte[255];
+	private int blockSize, bitBuffer, bitCount;
+
+	public GifEncoder(File file, int scale) throws IOException {
+		this.scale = scale;
+		this.width = 64*scale;
+		this.height = 32*scale;
+		this.pixels = new byte[width*height];
+		out = new BufferedOutputStream(new FileOutputStream(file));
+
+		//Header and logical screen descriptor, with a global colour table of 4 entries
+		out.write(new byte[] { 'G', 'I', 'F', '8', '9', 'a' });
+		writeShort(width);
+		writeShort(height);
+		out.write(0xF1);
+		out.write(0);
+		out.write(0);
+		//Black, white, and two unused entries
+		out.write(new byte[] { 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0, 0, 0, 0, 0 });
+
+		//Loop forever
+		out.write(new byte[] { 0x21, (byte) 0xFF, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1, 0, 0, 0 });
+	}
+
+	@Override
+	public void writeFrame(byte[] screen) throws IOException {
+		if (hasPending && !Arrays.equals(screen, pending)) {
+			if (centiseconds(frameCount) - centiseconds(pendingStart) >= MIN_DELAY) {
+				writePending();
+				pendingStart = frameCount;
+			}
+		}
+		System.arraycopy(screen, 0, pending, 0, 256);
+		hasPending = true;
+		frameCount++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (hasPending) writePending();
+		out.write(0x3B);
+		out.close();
+	}
+
+	/** Time of a frame in 1/100ths of a second */
+	private static long centiseconds(long frame) {
+		return (frame * 100 + 30) / 60;
+	}
+
+	/** Writes the pending frame, lasting from pendingStart until now. */
+	private void writePending() throws IOException {
+		int delay = (int) Math.max(MIN_DELAY, centiseconds(frameCount) - centiseconds(pendingStart));
+
+		//Graphic control extension with the delay
+		out.write(new byte[] { 0x21, (byte) 0xF9, 4, 0 });
+		writeShort(Math.min(delay, 0xFFFF));
+		out.write(0);
+		out.write(0);
+
+		//Image descriptor covering the whole screen
+		out.write(0x2C);
+		writeShort(0);
+		writeShort(0);
+		writeShort(width);
+		writeShort(height);
+		out.write(0);
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int sx = x / scale, sy = y / scale;
+				pixels[y*width + x] = (byte) ((pending[sy*8 + sx/8] >>> (7 - sx%8)) & 1);
+			}
+		}
+		out.write(MIN_CODE_SIZE);
+		compress(pixels);
+		out.write(0);
+	}
+
+	/** LZW compresses the pixels into sub-blocks. The table maps (code, next pixel) to the code
+	 * for that string, with 0 meaning there is no such string yet. */
+	private void compress(byte[] pixels) throws IOException {
+		int codeSize = MIN_CODE_SIZE + 1;
+		int next = EOI + 1;
+		Arrays.fill(table, (short) 0);
+		writeCode(CLEAR, codeSize);
+
+		int code = pixels[0];
+		for (int i = 1; i < pixels.length; i++) {
+			int px = pixels[i];
+			int entry = (code << MIN_CODE_SIZE) | px;
+			if (table[entry] != 0) {
+				code = table[entry];
+				continue;
+			}
+
+			writeCode(code, codeSize);
+			if (next < 4096) {
+				table[entry] = (short) next++;
+				if (next > (1 << codeSize) && codeSize < 12) codeSize++;
+			}
+			else {
+				//The table is full, so start again
+				writeCode(CLEAR, codeSize);
+				Arrays.fill(table, (short) 0);
+				codeSize = MIN_CODE_SIZE + 1;
+				next = EOI + 1;
+			}
+			code = px;
+		}
+		writeCode(code, codeSize);
+		//The decoder adds a table entry for the last code too, which might make the EOI code longer
+		if (next < 4096 && next == (1 << codeSize) && codeSize < 12) codeSize++;
+		writeCode(EOI, codeSize);
+
+		if (bitCount > 0) addByte(bitBuffer);
+		bitBuffer = bitCount = 0;
+		if (blockSize > 0) flushBlock();
+	}
+
+	private void writeCode(int code, int codeSize) throws IOException {
+		bitBuffer |= code << bitCount;
+		bitCount += codeSize;
+		while (bitCount >= 8) {
+			addByte(bitBuffer & 0xFF);
+			bitBuffer >>>= 8;
+			bitCount -= 8;
+		}
+	}
+
+	private void addByte(int b) throws IOException {
+		block[blockSize++] = (byte) b;
+		if (blockSize == 255) flushBlock();
+	}
+
+	private void flushBlock() throws IOException {
+		out.write(blockSize);
+		out.write(block, 0, blockSize);
+		blockSize = 0;
+	}
+
+	private void writeShort(int s) throws IOException {
+		out.write(s & 0xFF);
+		out.write(s >>> 8);
+	}
+
+}
@@ -0,0 +1,127 @@
+package devmas.chip8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/** Measures how long it takes for a key press to show up on the screen.
+ *
+ * Every key press is timestamped and followed through three stages:
+ *   READ:  until an instruction (Ex9E, ExA1 or Fx0A) sees that the key is down
+ *   DRAW:  from then until the next change to the screen (CLS or DRW)
+ *   PAINT: from then until the window paints the screen
+ * and the times for each stage (and in total) are kept so that percentiles can be reported.
+ * Key presses the program never looks at are given up on after GIVE_UP_TIME. */
+public class LatencyTracker {
+
+	/** The names of the stages, in order, plus the total */
+	private static final String[] STAGES = { "key -> read", "read -> draw", "draw -> paint", "total" };
+
+	/** How long to wait for a key press to go through all the stages before forgetting it */
+	private static final long GIVE_UP_TIME = 5000 * 1000000L;
+
+	/** Key presses still going through the stages */
+	private final List<Event> events = new ArrayList<Event>();
+
+	/** The time each finished key press took in each stage, in nanoseconds */
+	private final long[][] samples = new long[STAGES.length][1024];
+	private int sampleCount;
+
+	/** Key presses that were given up on */
+	private int abandoned;
+
+	/** Called when keys are pressed. buttons has a bit set for each key just pressed. */
+	public synchronized void keyPressed(int buttons) {
+		long now = System.nanoTime();
+		giveUp(now);
+		events.add(new Event(buttons, now));
+	}
+
+	/** Called when an instruction sees that the given buttons are down. */
+	public synchronized void buttonsRead(int buttons) {
+		if (events.isEmpty()) return;
+		long now = System.nanoTime();
+		for (Event e : events) {
+			if (e.read == 0 && (e.buttons & buttons) != 0) e.read = now;
+		}
+	}
+
+	/** Called when the emulator changes the screen. */
+	public synchronized void screenChanged() {
+		if (events.isEmpty()) return;
+		long now = System.nanoTime();
+		for (Event e : events) {
+			if (e.read != 0 && e.draw == 0) e.draw = now;
+		}
+	}
+
+	/** Called when the window starts painting the screen. */
+	public synchronized void painted() {
+		if (events.isEmpty()) return;
+		long now = System.nanoTime();
+		for (Iterator<Event> it = events.iterator(); it.hasNext();) {
+			Event e = it.next();
+			if (e.draw != 0) {
+				addSample(e.read - e.pressed, e.draw - e.read, now - e.draw, now - e.pressed);
+				it.remove();
+			}
+		}
+	}
+
+	/** Forgets key presses that have been around too long, e.g. because nothing reads that key */
+	private void giveUp(long now) {
+		for (Iterator<Event> it = events.iterator(); it.hasNext();) {
+			if (now - it.next().pressed > GIVE_UP_TIME) {
+				it.remove();
+				abandoned++;
+			}
+		}
+	}
+
+	private void addSample(long... times) {
+		if (sampleCount == samples[0].length) {
+			for (int i = 0; i < samples.length; i++) samples[i] = Arrays.copyOf(samples[i], sampleCount*2);
+		}
+		for (int i = 0; i < times.length; i++) samples[i][sampleCount] = times[i];
+		sampleCount++;
+	}
+
+
+	/** Returns a table of the 50th, 95th and 99th percentile times for each stage, in milliseconds. */
+	public synchronized String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Input latency over ").append(sampleCount).append(" key presses (")
+			.append(abandoned).append(" never read)\n");
+		sb.append(String.format("%-14s %8s %8s %8s%n", "stage (ms)", "p50", "p95", "p99"));
+		for (int i = 0; i < STAGES.length; i++) {
+			long[] sorted = Arrays.copyOf(samples[i], sampleCount);
+			Arrays.sort(sorted);
+			sb.append(String.format("%-14s %8.2f %8.2f %8.2f%n", STAGES[i],
+					percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99)));
+		}
+		return sb.toString();
+	}
+
+	/** Returns the given percentile of the sorted times, in milliseconds */
+	private static double percentile(long[] sorted, int p) {
+		if (sorted.length == 0) return 0;
+		int i = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+		return sorted[Math.max(i, 0)] / 1000000.0;
+	}
+
+
+	/** A key press on its way to the screen. The times are from System.nanoTime(), with 0
+	 * meaning that stage hasn't happened yet. */
+	private static class Event {
+		final int buttons;
+		final long pressed;
+		long read, draw;
+
+		Event(int buttons, long pressed) {
+			this.buttons = buttons;
+			this.pressed = pressed;
+		}
+	}
+
+}
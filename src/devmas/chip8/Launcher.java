@@ -0,0 +1,307 @@
+package devmas.chip8;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/** The command line entry point.
+ *
+ * This class is careful to start quickly: it only touches AWT and Swing (through Main) when the
+ * window front end is chosen, so running with "--frontend terminal" or "--frontend none" works
+ * without a display and doesn't pay for loading them. chip8.sh in the project directory runs it
+ * with a class data sharing archive to cut down start-up time further.
+ *
+ * The emulator runs a frame at a time: each frame runs speed/60 instructions, then the screen
+ * is shown, then we wait for the next 1/60th of a second (unless --unthrottled is given). */
+public class Launcher {
+
+	private static final String USAGE =
+		"Usage: Launcher [options] [ROM_FILE]\n" +
+		"  --frontend gui|terminal|none  How to show the screen (default gui)\n" +
+		"  --speed N             Instructions per second (default 600)\n" +
+		"  --unthrottled         Run as fast as possible instead of 60 frames a second\n" +
+		"  --max-instructions N  Stop after running N instructions\n" +
+		"  --max-frames N        Stop after N frames\n" +
+		"  --max-seconds N       Stop after N seconds\n" +
+		"  --scale N             How much to scale up the window (default 8, at most 32 unless nearest)\n" +
+		"  --filter nearest|scale2x|rounded  How to smooth the scaled pixels (default scale2x)\n" +
+		"  --record FILE         Record the screen (.gif, .c8log, or a directory for PNGs)\n" +
+		"  --debug [PORT]        Let a DebugClient attach\n" +
+		"  --key-hold MS         With the terminal, how long a key counts as held after it is typed;\n" +
+		"                        must be longer than the key repeat delay (default 700)\n" +
+		"  --latency             Measure key press to screen latency, and print it on exit (gui or terminal)\n" +
+		"  --trace               Print every instruction as it runs\n" +
+		"  --print-screen        Print the screen when done\n" +
+		"  --timing              Print how long it took to get to the first instruction\n" +
+		"With the gui front end and no ROM_FILE, you are asked for one.";
+
+	String frontEnd = "gui";
+	String romPath;
+	int speed = 600;
+	boolean unthrottled;
+	long maxInstructions = -1, maxFrames = -1, maxNanos = -1;
+	int scale = 8;
+	String filter = "scale2x";
+	String recordPath;
+	int debugPort = -1;
+	long keyHoldMillis = TerminalScreen.DEFAULT_HOLD_MILLIS;
+	boolean measureLatency, trace, printScreen, timing;
+
+	public static void main(String[] args) throws Exception {
+		//Taken before anything else, for --timing
+		long startNanos = System.nanoTime();
+		long startMillis = System.currentTimeMillis();
+
+		Launcher launcher = new Launcher();
+		try {
+			launcher.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		try {
+			launcher.run(startNanos, startMillis);
+		} catch (IOException e) {
+			//Usually something about the setup, like a missing file or a port in use
+			System.err.println("Error: "+e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/** Reads the command line options into the fields. */
+	void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				if (romPath != null) throw new IllegalArgumentException("Only one ROM file, please");
+				romPath = arg;
+				continue;
+			}
+			switch (arg) {
+			case "--frontend":
+				frontEnd = value(args, ++i, arg);
+				if (!frontEnd.equals("gui") && !frontEnd.equals("terminal") && !frontEnd.equals("none"))
+					throw new IllegalArgumentException("Unknown front end: "+frontEnd);
+				break;
+			case "--speed":
+				speed = (int) number(args, ++i, arg);
+				break;
+			case "--unthrottled":
+				unthrottled = true;
+				break;
+			case "--max-instructions":
+				maxInstructions = number(args, ++i, arg);
+				break;
+			case "--max-frames":
+				maxFrames = number(args, ++i, arg);
+				break;
+			case "--max-seconds":
+				maxNanos = number(args, ++i, arg) * 1000000000L;
+				break;
+			case "--scale":
+				scale = (int) number(args, ++i, arg);
+				break;
+			case "--filter":
+				filter = value(args, ++i, arg);
+				if (!filter.equals("nearest") && !filter.equals("scale2x") && !filter.equals("rounded"))
+					throw new IllegalArgumentException("Unknown filter: "+filter);
+				break;
+			case "--record":
+				recordPath = value(args, ++i, arg);
+				break;
+			case "--debug":
+				//The port is optional
+				if (i+1 < args.length && args[i+1].matches("\\d+")) {
+					debugPort = (int) number(args, ++i, arg);
+				}
+				else debugPort = Debugger.DEFAULT_PORT;
+				break;
+			case "--key-hold":
+				keyHoldMillis = number(args, ++i, arg);
+				if (keyHoldMillis < 1) throw new IllegalArgumentException("--key-hold must be at least 1");
+				break;
+			case "--latency":
+				measureLatency = true;
+				break;
+			case "--trace":
+				trace = true;
+				break;
+			case "--print-screen":
+				printScreen = true;
+				break;
+			case "--timing":
+				timing = true;
+				break;
+			case "--help":
+				System.out.println(USAGE);
+				System.exit(0);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: "+arg);
+			}
+		}
+		if (speed < 1) throw new IllegalArgumentException("--speed must be at least 1");
+		if (scale < 1) throw new IllegalArgumentException("--scale must be at least 1");
+		if (scale > Upscaler.MAX_SCALE && !filter.equals("nearest")) {
+			throw new IllegalArgumentException("--scale can be at most "+Upscaler.MAX_SCALE+" unless --filter is nearest");
+		}
+		if (romPath == null && !frontEnd.equals("gui")) throw new IllegalArgumentException("No ROM file given");
+		if (measureLatency && frontEnd.equals("none")) {
+			throw new IllegalArgumentException("--latency needs key presses, so it can't be used with --frontend none");
+		}
+	}
+
+	private static String value(String[] args, int i, String option) {
+		if (i >= args.length) throw new IllegalArgumentException(option+" needs a value");
+		return args[i];
+	}
+
+	private static long number(String[] args, int i, String option) {
+		try {
+			return Long.parseLong(value(args, i, option));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(option+" needs a number");
+		}
+	}
+
+
+	/** Sets everything up and runs the emulator until a limit is reached or the user quits. */
+	void run(long startNanos, long startMillis) throws Exception {
+		File romFile = romPath != null ? new File(romPath) : Main.askForFile();
+		Emulator emu = new Emulator(romFile);
+		emu.trace = trace;
+
+		LatencyTracker latency = null;
+		if (measureLatency) {
+			final LatencyTracker tracker = latency = new LatencyTracker();
+			emu.latency = tracker;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					System.out.print(tracker.report());
+				}
+			});
+		}
+
+		//The front end is started last, so that if the recording or the debugger can't be set up
+		//there is nothing but the recording to close: no window and no terminal left in raw mode
+		FrontEnd screen = null;
+		FrameRecorder recorder = null;
+		long instructions = 0, frames = 0;
+		try {
+			if (recordPath != null) {
+				//Make sure the recording is finished, even if the window is closed
+				final FrameRecorder opened = recorder = FrameRecorder.open(new File(recordPath));
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						try {
+							opened.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+			}
+
+			if (debugPort != -1) {
+				emu.debugger = new Debugger(emu);
+				emu.debugger.listen(debugPort);
+			}
+
+			screen = createFrontEnd(latency);
+
+			if (timing) printTiming(startNanos, startMillis);
+
+			long begin = System.nanoTime(), nextFrame = begin;
+			while (!screen.isClosed()) {
+				if (maxFrames >= 0 && frames >= maxFrames) break;
+				if (maxInstructions >= 0 && instructions >= maxInstructions) break;
+				if (maxNanos >= 0 && System.nanoTime() - begin >= maxNanos) break;
+
+				//Spread the instructions evenly over the frames when speed isn't a multiple of 60
+				int cycles = (int) ((frames+1) * speed / 60 - frames * speed / 60);
+				if (maxInstructions >= 0) cycles = (int) Math.min(cycles, maxInstructions - instructions);
+
+				emu.runFrame(screen.getButtons(), cycles);
+				instructions += cycles;
+				frames++;
+
+				if (recorder != null) recorder.capture(emu.screen);
+				screen.present(emu.screen);
+
+				if (!unthrottled) {
+					nextFrame = Emulator.waitForNextFrame(nextFrame);
+				}
+			}
+		} finally {
+			if (screen != null) screen.close();
+			if (recorder != null) recorder.close();
+		}
+
+		if (printScreen) printScreen(emu.screen);
+		System.err.println("Ran "+instructions+" instructions in "+frames+" frames");
+	}
+
+	/** Creates the front end that was asked for. */
+	private FrontEnd createFrontEnd(LatencyTracker latency) throws IOException {
+		switch (frontEnd) {
+		case "gui":
+			//This is the only place that leads to AWT and Swing being loaded
+			return Main.createFrontEnd(scale, Upscaler.Filter.valueOf(filter.toUpperCase()), latency);
+		case "terminal":
+			TerminalScreen term = new TerminalScreen(new FileOutputStream(FileDescriptor.out), keyHoldMillis);
+			term.latency = latency;
+			try {
+				term.start();
+			} catch (IOException e) {
+				//Put back whatever start() managed to change
+				term.close();
+				throw e;
+			}
+			return term;
+		default:
+			return new FrontEnd() {
+				@Override
+				public char getButtons() {
+					return 0;
+				}
+
+				@Override
+				public void present(byte[] screen) {}
+
+				@Override
+				public boolean isClosed() {
+					return false;
+				}
+
+				@Override
+				public void close() {}
+			};
+		}
+	}
+
+	/** Prints how long it took from the JVM starting, and from main() being called, until now. */
+	private static void printTiming(long startNanos, long startMillis) {
+		long sinceMain = System.nanoTime() - startNanos;
+		//Only loaded when asked for, since the management classes take a while to load
+		long jvmStart = java.lang.management.ManagementFactory.getRuntimeMXBean().getStartTime();
+		System.err.println("Time to first instruction: "+(startMillis - jvmStart + sinceMain / 1000000)
+				+" ms since JVM start ("+(sinceMain / 1000)+" us since main)");
+	}
+
+	/** Prints the screen with a '#' for each pixel that is on. */
+	private static void printScreen(byte[] screen) {
+		StringBuilder sb = new StringBuilder();
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 64; x++) {
+				sb.append((screen[y*8 + x/8] >>> (7 - x%8) & 1) == 0 ? '.' : '#');
+			}
+			sb.append('\n');
+		}
+		System.out.print(sb);
+	}
+
+}
@@ -6,6 +6,7 @@ import java.io.File;
 
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 
@@ -13,51 +14,64 @@ public class Main {
 	
 	static volatile char buttonsDown;
 	
-	public static final int sleepTime = 1;
-	
-	public static final String filePath = "C:\\Users\\Colin\\Desktop\\Emulation\\chip8\\Mazed.ch8";
+	/** The latency tracker, if Launcher was asked to measure latency */
+	static LatencyTracker latency;
 	
+	/** The old entry point. Everything is done by Launcher now, with the window as the default
+	 * front end. */
 	public static void main(String[] args) throws Exception {
-		
-		//Get the file pointed to by filePath
-		File romFile = new File(filePath);
-		
-		//If the file doesn't exist, then ask the user which file to load with a file chooser.
-		if (!romFile.exists()) romFile = askForFile();
-		
-		//Create the emulator window
-		MainWindow win = createWindow(8);
-		
-		//Create the emulator
-		Emulator emu = new Emulator(romFile);
-		
-		//Set the screen data in the window to the screen data in the emulator
-		// so that when the emulator draws to the screen, the window will see it.
-		win.screen = emu.screen;
-		
-		//Print the memory in the emulator to the screen.
-		//Since we didn't run the program yet, it will only contain the ROM.
-		emu.printMemory();
-		
-		//Infinite loop (until an exception happens)
-		while (true) {
-			//Print the data relating to the emulated CPU
-			emu.printProcessorData();
-			//Execute a CPU instruction
-			emu.step(buttonsDown, sleepTime);
-			//Tell the window to repaint itself
-			win.repaint();
-		}
+		Launcher.main(args);
 	}
 	
 	
-	/** Creates a window and returns a component which will allow you to draw data. */
+	/** Creates the window front end. Launcher calls this only when the window is wanted, so
+	 * that AWT and Swing never get loaded otherwise. */
+	static FrontEnd createFrontEnd(int magnification, Upscaler.Filter filter, LatencyTracker latency) {
+		Main.latency = latency;
+		final MainWindow win = createWindow(magnification, filter);
+		win.latency = latency;
+		
+		return new FrontEnd() {
+			@Override
+			public char getButtons() {
+				return buttonsDown;
+			}
+			
+			@Override
+			public void present(byte[] screen) {
+				//The window draws straight from the emulator's screen array
+				win.screen = screen;
+				win.repaint();
+			}
+			
+			@Override
+			public boolean isClosed() {
+				//Closing the window exits the program
+				return false;
+			}
+			
+			@Override
+			public void close() {
+				SwingUtilities.getWindowAncestor(win).dispose();
+			}
+		};
+	}
+	
+	
+	/** Creates a window and returns a component which will allow you to draw data. The pixels
+	 * are drawn as they are, without smoothing, so what you see is exactly the screen. */
 	public static MainWindow createWindow(int magnification) {
+		return createWindow(magnification, Upscaler.Filter.NEAREST);
+	}
+	
+	/** Creates a window with the given filter for scaling the pixels up. */
+	public static MainWindow createWindow(int magnification, Upscaler.Filter filter) {
 		JFrame frame = new JFrame();
 		frame.setBounds(100, 100, 64*magnification + 16, 32*magnification + 39);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		
 		MainWindow win = new MainWindow(magnification);
+		win.setFilter(filter);
 		frame.add(win);
 		frame.setVisible(true);
 		
@@ -95,6 +109,7 @@ public class Main {
 	static class EmulatorKeyListener implements KeyListener {
 		@Override
 		public void keyPressed(KeyEvent ke) {
+			char before = buttonsDown;
 			switch (ke.getKeyCode()) {
 			case KeyEvent.VK_X:
 				buttonsDown = (char) (buttonsDown | 0b0000000000000001);
@@ -145,6 +160,8 @@ public class Main {
 				buttonsDown = (char) (buttonsDown | 0b1000000000000000);
 				break;
 			}
+			//Key repeat sends keyPressed again while a key is held; only count real presses
+			if (latency != null && buttonsDown != before) latency.keyPressed(buttonsDown & ~before);
 		}
 
 		@Override
@@ -4,6 +4,8 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
 import javax.swing.JPanel;
 
@@ -15,6 +17,13 @@ public class MainWindow extends JPanel {
 	/** This is how much the screen will be scaled (magnification). */
 	int mag;
 	
+	/** If not null, this scales the screen into image, which is drawn instead of the pixels */
+	private Upscaler upscaler;
+	private BufferedImage image;
+	
+	/** If not null, this is told whenever the screen is painted */
+	LatencyTracker latency;
+	
 	public MainWindow(int magnification) {
 		super();
 		this.mag = magnification;
@@ -22,9 +31,29 @@ public class MainWindow extends JPanel {
 		
 		
 	}
+	
+	/** Sets how the pixels are scaled up. NEAREST draws them as plain rectangles. */
+	public void setFilter(Upscaler.Filter filter) {
+		if (filter == Upscaler.Filter.NEAREST) {
+			upscaler = null;
+			image = null;
+			return;
+		}
+		image = new BufferedImage(64*mag, 32*mag, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		upscaler = new Upscaler(filter, mag, Color.WHITE.getRGB(), Color.BLACK.getRGB(), pixels);
+	}
 
 	@Override
 	public void paint(Graphics g) {
+		if (latency != null) latency.painted();
+		
+		if (upscaler != null) {
+			upscaler.render(screen);
+			g.drawImage(image, 0, 0, null);
+			return;
+		}
+		
 		g.setColor(Color.BLACK);
 		g.fillRect(0, 0, 64*mag, 32*mag);
 		g.setColor(Color.WHITE);
@@ -0,0 +1,433 @@
+package devmas.chip8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/** Two player netplay using rollback. Both players share the one keypad: the buttons pressed
+ * on each side are ORed together.
+ *
+ * Each side runs its own emulator and never waits for the other side's buttons. Instead it
+ * guesses that the other player is still holding whatever they held last. When the real buttons
+ * arrive and the guess was wrong, the emulator is rolled back to the snapshot taken at the start
+ * of that frame and the frames since then are run again (as fast as possible) with the right
+ * buttons. Every so often both sides send each other a hash of a frame they both agree on, so
+ * that if the two emulators ever end up different it gets noticed.
+ *
+ * Usage: Netplay host PORT ROM_FILE [options]
+ *        Netplay join HOST PORT ROM_FILE [options]
+ *   --latency MS      Adds an artificial delay to everything sent, for trying things out on localhost
+ *   --frames N        Runs headless (no window) for N frames with scripted buttons, then prints
+ *                     the rollback statistics and a hash of the final state, which should be the
+ *                     same on both sides. Exits with status 1 if the two sides got out of sync.
+ *   --input-seed S    Seed for the scripted buttons (default: 1 for host, 2 for join) */
+public class Netplay {
+
+	/** How many instructions are executed every frame */
+	public static final int CYCLES_PER_FRAME = 10;
+
+	/** How many frames we can run ahead of the other player's buttons before we have to wait */
+	public static final int MAX_ROLLBACK = 15;
+
+	/** How often (in frames) the two sides compare state hashes */
+	public static final int HASH_INTERVAL = 30;
+
+	/** The size of the ring buffers. Must be a power of 2 and comfortably more than twice
+	 * MAX_ROLLBACK, since the other side can be up to MAX_ROLLBACK frames ahead of us too. */
+	private static final int BUFFER = 64;
+
+	/** Message types. BYE never goes over the wire; it tells the sending thread to finish. */
+	private static final byte BYE = 0, INPUT = 1, HASH = 2;
+
+	private final Emulator emu;
+	private final Socket socket;
+
+	/** Snapshots of the emulator taken at the start of each frame */
+	private final Emulator.State[] states = new Emulator.State[BUFFER];
+
+	/** Our buttons and the other player's buttons (real or guessed) for each frame */
+	private final char[] localInputs = new char[BUFFER];
+	private final char[] remoteInputs = new char[BUFFER];
+
+	/** The frame about to be run, i.e. the number of frames run so far */
+	private int frame;
+
+	/** The number of frames that we have the other player's real buttons for */
+	private int remoteFrames;
+
+	/** The earliest frame that was run with a wrong guess, or Integer.MAX_VALUE if none */
+	private int rollbackFrame = Integer.MAX_VALUE;
+
+	/** The next frame to send a hash for */
+	private int nextHashFrame = HASH_INTERVAL;
+
+	/** Hashes that one side has worked out and the other side hasn't yet, keyed by frame */
+	private final Map<Integer, Long> localHashes = new HashMap<Integer, Long>();
+	private final Map<Integer, Long> remoteHashes = new HashMap<Integer, Long>();
+
+	/** Statistics, for seeing how netplay is doing */
+	public int rollbacks, framesReplayed, stalls;
+
+	/** The first frame where the two emulators were found to be different, or -1 */
+	public volatile int desyncFrame = -1;
+
+	/** Messages received from the other side, waiting to be handled by the emulator thread */
+	private final ConcurrentLinkedQueue<Message> received = new ConcurrentLinkedQueue<Message>();
+
+	/** Messages waiting to be sent, held back until their artificial latency has passed */
+	private final DelayQueue<Message> outgoing = new DelayQueue<Message>();
+
+	/** Artificial latency added to everything we send, in nanoseconds */
+	private final long latency;
+
+	/** Set once the other side has gone away */
+	private volatile boolean disconnected;
+
+	/** The thread sending messages */
+	private Thread writer;
+
+	private Netplay(Emulator emu, Socket socket, long latencyMillis) throws IOException {
+		this.emu = emu;
+		this.socket = socket;
+		this.latency = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+		for (int i = 0; i < BUFFER; i++) states[i] = new Emulator.State();
+		socket.setTcpNoDelay(true);
+		startThreads();
+	}
+
+	/** Waits for the other player to connect, then starts a session. The random number generator
+	 * of the other player's emulator is set to ours so that both run the same. */
+	public static Netplay host(Emulator emu, int port, long latencyMillis) throws IOException {
+		Socket socket;
+		try (ServerSocket server = new ServerSocket(port)) {
+			socket = server.accept();
+		}
+		new DataOutputStream(socket.getOutputStream()).writeLong(emu.seed);
+		return new Netplay(emu, socket, latencyMillis);
+	}
+
+	/** Connects to a player who is hosting, and starts a session. */
+	public static Netplay join(Emulator emu, InetAddress host, int port, long latencyMillis) throws IOException {
+		Socket socket = new Socket(host, port);
+		emu.seed = new DataInputStream(socket.getInputStream()).readLong();
+		return new Netplay(emu, socket, latencyMillis);
+	}
+
+
+	/** Runs one frame with our buttons, rolling back first if the other player's buttons showed
+	 * that an earlier frame was run with a wrong guess. Returns false without running anything
+	 * if we are too far ahead of the other player and have to wait for them to catch up. */
+	public boolean advanceFrame(char buttons) throws IOException {
+		if (disconnected) throw new IOException("The other player disconnected");
+
+		handleMessages();
+		if (rollbackFrame < frame) rollback();
+		sendHashes();
+
+		if (frame - remoteFrames >= MAX_ROLLBACK) {
+			stalls++;
+			return false;
+		}
+
+		int i = frame & (BUFFER-1);
+		localInputs[i] = buttons;
+		send(new Message(INPUT, frame, buttons));
+		if (frame >= remoteFrames) remoteInputs[i] = guessRemoteInput();
+
+		emu.saveState(states[i]);
+		emu.runFrame((char) (localInputs[i] | remoteInputs[i]), CYCLES_PER_FRAME);
+		frame++;
+		return true;
+	}
+
+	/** Guesses the other player's buttons for a frame we haven't heard about yet: they are
+	 * probably still holding the last buttons we know about. */
+	private char guessRemoteInput() {
+		return remoteFrames == 0 ? 0 : remoteInputs[(remoteFrames-1) & (BUFFER-1)];
+	}
+
+	/** Deals with everything the other side has sent since the last frame. */
+	private void handleMessages() {
+		Message m;
+		while ((m = received.poll()) != null) {
+			if (m.type == INPUT) {
+				//TCP keeps these in order, so m.frame is always remoteFrames
+				int i = m.frame & (BUFFER-1);
+				if (m.frame < frame && remoteInputs[i] != m.buttons) {
+					rollbackFrame = Math.min(rollbackFrame, m.frame);
+				}
+				remoteInputs[i] = m.buttons;
+				remoteFrames = m.frame + 1;
+			}
+			else {
+				Long ours = localHashes.remove(m.frame);
+				if (ours == null) remoteHashes.put(m.frame, m.hash);
+				else compareHashes(m.frame, ours, m.hash);
+			}
+		}
+	}
+
+	/** Restores the snapshot of the first frame that was guessed wrong and runs all frames since
+	 * then again, with the real buttons where we have them and fresh guesses where we don't. */
+	private void rollback() {
+		boolean trace = emu.trace;
+		emu.trace = false;
+
+		emu.loadState(states[rollbackFrame & (BUFFER-1)]);
+		for (int f = rollbackFrame; f < frame; f++) {
+			int i = f & (BUFFER-1);
+			if (f > rollbackFrame) emu.saveState(states[i]);
+			if (f >= remoteFrames) remoteInputs[i] = guessRemoteInput();
+			emu.runFrame((char) (localInputs[i] | remoteInputs[i]), CYCLES_PER_FRAME);
+			framesReplayed++;
+		}
+
+		emu.trace = trace;
+		rollbacks++;
+		rollbackFrame = Integer.MAX_VALUE;
+	}
+
+	/** Sends the hash of every frame due for one that both sides now agree on. The snapshot for a
+	 * frame is final once we have the other player's buttons for every frame before it. */
+	private void sendHashes() {
+		while (nextHashFrame < frame && nextHashFrame <= remoteFrames) {
+			long hash = states[nextHashFrame & (BUFFER-1)].hash();
+			send(new Message(HASH, nextHashFrame, hash));
+
+			Long theirs = remoteHashes.remove(nextHashFrame);
+			if (theirs == null) localHashes.put(nextHashFrame, hash);
+			else compareHashes(nextHashFrame, hash, theirs);
+
+			nextHashFrame += HASH_INTERVAL;
+		}
+	}
+
+	private void compareHashes(int frame, long ours, long theirs) {
+		if (ours != theirs && desyncFrame == -1) {
+			desyncFrame = frame;
+			System.err.println("Desync detected at frame "+frame+"!");
+		}
+	}
+
+	/** Returns the frame about to be run */
+	public int getFrame() {
+		return frame;
+	}
+
+	/** Waits (without running any more frames) until we have the other player's buttons for the
+	 * given number of frames, rolling back as needed. Returns false if the other player went
+	 * away or it took longer than the timeout. */
+	public boolean waitForRemote(int frames, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (true) {
+			handleMessages();
+			if (rollbackFrame < frame) rollback();
+			sendHashes();
+			if (remoteFrames >= frames) return true;
+			if ((disconnected && received.isEmpty()) || System.nanoTime() > deadline) return false;
+			Thread.sleep(1);
+		}
+	}
+
+	/** Sends whatever is still waiting to go out (after its latency), then closes the connection. */
+	public void close() throws IOException {
+		send(new Message(BYE, frame, (char) 0));
+		try {
+			writer.join(TimeUnit.NANOSECONDS.toMillis(latency) + 5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		disconnected = true;
+		socket.close();
+	}
+
+
+	private void send(Message m) {
+		m.due = System.nanoTime() + latency;
+		outgoing.add(m);
+	}
+
+	/** Starts one thread which reads messages from the socket, and one which writes them once
+	 * their latency has passed. Neither of them touches the emulator. */
+	private void startThreads() throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		Thread reader = new Thread("Netplay receive") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						byte type = in.readByte();
+						int frame = in.readInt();
+						if (type == INPUT) received.add(new Message(type, frame, in.readChar()));
+						else received.add(new Message(type, frame, in.readLong()));
+					}
+				} catch (IOException e) {
+					disconnected = true;
+				}
+			}
+		};
+		writer = new Thread("Netplay send") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Message m = outgoing.take();
+						if (m.type == BYE) {
+							//Let the other side read everything we sent before it sees the end
+							socket.shutdownOutput();
+							break;
+						}
+						out.writeByte(m.type);
+						out.writeInt(m.frame);
+						if (m.type == INPUT) out.writeChar(m.buttons);
+						else out.writeLong(m.hash);
+						out.flush();
+					}
+				} catch (IOException | InterruptedException e) {
+					disconnected = true;
+				}
+			}
+		};
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+
+	/** Something sent between the two sides: either our buttons for a frame or a state hash. */
+	static class Message implements Delayed {
+		final byte type;
+		final int frame;
+		final char buttons;
+		final long hash;
+		/** When the message may be sent, in System.nanoTime() time */
+		long due;
+
+		Message(byte type, int frame, char buttons) {
+			this.type = type;
+			this.frame = frame;
+			this.buttons = buttons;
+			this.hash = 0;
+		}
+
+		Message(byte type, int frame, long hash) {
+			this.type = type;
+			this.frame = frame;
+			this.buttons = 0;
+			this.hash = hash;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			//Messages all have the same latency, so this keeps them in the order they were sent
+			return Long.compare(due, ((Message) o).due);
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		boolean hosting = args.length > 0 && args[0].equals("host");
+		int argsUsed = hosting ? 3 : 4;
+		if (args.length < argsUsed || !(hosting || args[0].equals("join"))) {
+			System.out.println("Usage: Netplay host PORT ROM_FILE [--latency MS] [--frames N] [--input-seed S]\n"
+					+ "       Netplay join HOST PORT ROM_FILE [--latency MS] [--frames N] [--input-seed S]");
+			System.exit(2);
+		}
+
+		long latencyMillis = 0;
+		int headlessFrames = -1;
+		long inputSeed = hosting ? 1 : 2;
+		for (int i = argsUsed; i < args.length; i++) {
+			switch (args[i]) {
+			case "--latency":
+				latencyMillis = Long.parseLong(args[++i]);
+				break;
+			case "--frames":
+				headlessFrames = Integer.parseInt(args[++i]);
+				break;
+			case "--input-seed":
+				inputSeed = Long.parseLong(args[++i]);
+				break;
+			default:
+				System.err.println("Unknown option: "+args[i]);
+				System.exit(2);
+			}
+		}
+
+		Emulator emu = new Emulator(new File(args[argsUsed-1]));
+		emu.trace = false;
+
+		Netplay net;
+		if (hosting) net = host(emu, Integer.parseInt(args[1]), latencyMillis);
+		else net = join(emu, InetAddress.getByName(args[1]), Integer.parseInt(args[2]), latencyMillis);
+
+		if (headlessFrames >= 0) runHeadless(emu, net, headlessFrames, inputSeed);
+		else runWindow(emu, net);
+	}
+
+	/** Runs the given number of frames at 60 frames a second with made up button presses, then
+	 * prints how it went. Never touches AWT or Swing, so it works without a display. */
+	private static void runHeadless(Emulator emu, Netplay net, int frames, long inputSeed) throws Exception {
+		Random random = new Random(inputSeed);
+		char buttons = 0;
+		long nextFrame = System.nanoTime();
+		while (net.getFrame() < frames) {
+			//Change buttons now and then, like a player would
+			if (random.nextInt(10) == 0) buttons = (char) (1 << random.nextInt(16));
+			if (random.nextInt(10) == 0) buttons = 0;
+			net.advanceFrame(buttons);
+
+			nextFrame = Emulator.waitForNextFrame(nextFrame);
+		}
+
+		//Wait for the other player's last buttons so both sides end up in the same final state
+		boolean complete = net.waitForRemote(frames, 10000);
+		//Give the other side a moment to send its last hashes before we hang up
+		Thread.sleep(100);
+		net.waitForRemote(frames, 0);
+		net.close();
+
+		Emulator.State state = new Emulator.State();
+		emu.saveState(state);
+		System.out.println("frames "+net.getFrame()+" rollbacks "+net.rollbacks+" replayed "+net.framesReplayed
+				+" stalls "+net.stalls+" desync "+net.desyncFrame+" complete "+complete
+				+" hash "+Long.toHexString(state.hash()));
+		System.exit(net.desyncFrame == -1 && complete ? 0 : 1);
+	}
+
+	/** Plays in a window with the keyboard, a frame every 1/60th of a second. */
+	private static void runWindow(Emulator emu, Netplay net) throws Exception {
+		MainWindow win = Main.createWindow(8);
+		win.screen = emu.screen;
+
+		//Run a frame every 1/60th of a second, whether or not we had to wait for the other player
+		long nextFrame = System.nanoTime();
+		while (true) {
+			if (net.advanceFrame(Main.buttonsDown)) win.repaint();
+
+			nextFrame = Emulator.waitForNextFrame(nextFrame);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package devmas.chip8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/** Writes each frame of the screen to its own black and white PNG file (frame00000.png,
+ * frame00001.png, ...) in a directory. */
+public class PngEncoder implements FrameRecorder.Encoder {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	private final File dir;
+	private final int scale, width, height;
+	private int frameCount;
+
+	/** The image data before compression: each row is a filter byte (0, meaning none) followed
+	 * by one bit per pixel */
+	private final byte[] raw;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+	private final byte[] buf = new byte[4096];
+
+	public PngEncoder(File dir, int scale) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create "+dir);
+		this.dir = dir;
+		this.scale = scale;
+		this.width = 64*scale;
+		this.height = 32*scale;
+		this.raw = new byte[height * (1 + width/8)];
+	}
+
+	@Override
+	public void writeFrame(byte[] screen) throws IOException {
+		int rowBytes = 1 + width/8;
+		for (int y = 0; y < height; y++) {
+			int sy = y / scale;
+			for (int x = 0; x < width; x += 8) {
+				int b = 0;
+				for (int i = 0; i < 8; i++) {
+					int sx = (x+i) / scale;
+					b = (b << 1) | ((screen[sy*8 + sx/8] >>> (7 - sx%8)) & 1);
+				}
+				raw[y*rowBytes + 1 + x/8] = (byte) b;
+			}
+		}
+
+		File file = new File(dir, String.format("frame%05d.png", frameCount++));
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.write(SIGNATURE);
+
+			//Width, height, 1 bit greyscale, no interlacing
+			DataOutputStream header = new DataOutputStream(chunk);
+			header.writeInt(width);
+			header.writeInt(height);
+			header.write(new byte[] { 1, 0, 0, 0, 0 });
+			writeChunk(out, "IHDR");
+
+			deflater.reset();
+			deflater.setInput(raw);
+			deflater.finish();
+			while (!deflater.finished()) chunk.write(buf, 0, deflater.deflate(buf));
+			writeChunk(out, "IDAT");
+
+			writeChunk(out, "IEND");
+		}
+	}
+
+	/** Writes out whatever is in chunk as a PNG chunk of the given type. */
+	private void writeChunk(DataOutputStream out, String type) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		byte[] data = chunk.toByteArray();
+		chunk.reset();
+
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+
+	@Override
+	public void close() {
+		deflater.end();
+	}
+
+}
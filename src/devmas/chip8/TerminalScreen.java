@@ -0,0 +1,211 @@
+package devmas.chip8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Shows the emulator's screen in a terminal using ANSI escape codes, for running over SSH or
+ * without a display.
+ *
+ * Each character cell shows two rows of pixels using the Unicode half block characters, so the
+ * screen takes up 64x16 cells. Only the cells that changed since the last refresh are sent, each
+ * preceded by a cursor move if the cursor isn't already there, and a whole refresh goes out in
+ * a single write. So the bytes sent depend on how much of the screen changed, not its size.
+ *
+ * Keys are read from stdin with the terminal in raw mode. Terminals only tell us when a key is
+ * typed, not when it is let go, so a key counts as held for a while after it was typed. The
+ * first time, that is the hold time, which must be longer than the terminal's key repeat delay
+ * (often 250 to 660 ms) so that holding a key down keeps it held until the repeats start. After
+ * that the repeats come quickly, so a key counts as held for only REPEAT_HOLD_TIME after each
+ * one, and letting go is noticed sooner.
+ *
+ * Run it with "Launcher --frontend terminal ROM_FILE". */
+public class TerminalScreen implements FrontEnd {
+
+	/** The characters for each cell: no pixels, top pixel, bottom pixel, both pixels */
+	private static final char[] BLOCKS = { ' ', '\u2580', '\u2584', '\u2588' };
+
+	/** The keys for buttons 0 to F, laid out like the Chip-8 keypad (same as Main's key listener) */
+	private static final String KEYS = "x123qweasdzc4rfv";
+
+	/** How long a key counts as held after it was first typed, unless told otherwise */
+	public static final long DEFAULT_HOLD_MILLIS = 700;
+
+	/** How long a key counts as held after a key repeat */
+	private static final long REPEAT_HOLD_TIME = 150 * 1000000L;
+
+	private static final int COLUMNS = 64, ROWS = 16;
+
+	private final OutputStream out;
+
+	/** How long a key counts as held after it was first typed, in nanoseconds */
+	private final long holdTime;
+
+	/** The cells as they are on the terminal now, or -1 if unknown */
+	private final int[] shown = new int[COLUMNS * ROWS];
+
+	/** The refresh being put together */
+	private final StringBuilder sb = new StringBuilder();
+
+	/** When each button was last typed (System.nanoTime()), or 0 if never */
+	private final long[] pressed = new long[16];
+
+	/** Whether the last time each button was typed was a key repeat */
+	private final boolean[] repeating = new boolean[16];
+
+	/** The terminal settings before we changed them, to put back when we are done */
+	private String savedSettings;
+
+	/** Set when the user presses Ctrl-C or Escape */
+	private volatile boolean quit;
+
+	/** If not null, this is told about key presses and whenever the screen is sent */
+	LatencyTracker latency;
+
+	public TerminalScreen(OutputStream out) {
+		this(out, DEFAULT_HOLD_MILLIS);
+	}
+
+	public TerminalScreen(OutputStream out, long holdMillis) {
+		this.out = out;
+		this.holdTime = holdMillis * 1000000L;
+		for (int i = 0; i < shown.length; i++) shown[i] = -1;
+	}
+
+
+	/** Puts the terminal in raw mode, clears it, and starts reading keys from stdin. */
+	public void start() throws IOException {
+		savedSettings = stty("-g").trim();
+		stty("raw", "-echo");
+
+		//Clear the screen and hide the cursor
+		out.write("\033[0m\033[2J\033[?25l".getBytes("UTF-8"));
+		out.flush();
+
+		final InputStream in = System.in;
+		Thread reader = new Thread("Terminal keys") {
+			@Override
+			public void run() {
+				try {
+					int c;
+					while ((c = in.read()) != -1) {
+						if (c == 3 || c == 27) {
+							quit = true;
+							break;
+						}
+						int button = KEYS.indexOf(Character.toLowerCase((char) c));
+						if (button == -1) continue;
+						long now = System.nanoTime();
+						//Typing a key that is still held must be the terminal's key repeat
+						boolean held = isHeld(button, now);
+						if (!held && latency != null) latency.keyPressed(1 << button);
+						repeating[button] = held;
+						pressed[button] = now;
+					}
+				} catch (IOException e) {
+					quit = true;
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/** Puts the terminal back the way it was. */
+	@Override
+	public void close() throws IOException {
+		//Nothing to put back if start() didn't get as far as changing anything
+		if (savedSettings == null) return;
+		out.write(("\033[0m\033[?25h\033[" + (ROWS+1) + ";1H\r\n").getBytes("UTF-8"));
+		out.flush();
+		stty(savedSettings);
+	}
+
+	@Override
+	public char getButtons() {
+		long now = System.nanoTime();
+		char buttons = 0;
+		for (int i = 0; i < 16; i++) {
+			if (isHeld(i, now)) buttons |= 1 << i;
+		}
+		return buttons;
+	}
+
+	private boolean isHeld(int button, long now) {
+		return pressed[button] != 0 && now - pressed[button] < (repeating[button] ? REPEAT_HOLD_TIME : holdTime);
+	}
+
+
+	@Override
+	public boolean isClosed() {
+		return quit;
+	}
+
+	/** Sends the cells that changed since last time. */
+	@Override
+	public void present(byte[] screen) throws IOException {
+		if (latency != null) latency.painted();
+		sb.setLength(0);
+
+		//Where the cursor is (0 based), or -1 if we don't know
+		int cursorRow = -1, cursorCol = -1;
+
+		for (int row = 0; row < ROWS; row++) {
+			for (int col = 0; col < COLUMNS; col++) {
+				int cell = cellAt(screen, row, col);
+				if (shown[row*COLUMNS + col] == cell) continue;
+
+				if (row != cursorRow || col != cursorCol) {
+					//Writing over one unchanged cell is shorter than a cursor move
+					if (row == cursorRow && col == cursorCol + 1) {
+						sb.append(BLOCKS[shown[row*COLUMNS + cursorCol]]);
+					}
+					else sb.append("\033[").append(row+1).append(';').append(col+1).append('H');
+				}
+				sb.append(BLOCKS[cell]);
+				shown[row*COLUMNS + col] = cell;
+				cursorRow = row;
+				cursorCol = col+1;
+			}
+		}
+
+		if (sb.length() == 0) return;
+		out.write(sb.toString().getBytes("UTF-8"));
+		out.flush();
+	}
+
+	/** Returns which of the two pixels of a cell are on: bit 0 for the top, bit 1 for the bottom */
+	private static int cellAt(byte[] screen, int row, int col) {
+		int top = (screen[(row*2)*8 + col/8] >>> (7 - col%8)) & 1;
+		int bottom = (screen[(row*2+1)*8 + col/8] >>> (7 - col%8)) & 1;
+		return top | bottom << 1;
+	}
+
+	/** Runs stty on the terminal we are attached to, returning what it prints. Throws an
+	 * IOException if it fails, e.g. because stdin isn't a terminal. */
+	private static String stty(String... args) throws IOException {
+		String[] cmd = new String[args.length + 1];
+		cmd[0] = "stty";
+		System.arraycopy(args, 0, cmd, 1, args.length);
+		//Errors go to the same place, so that they end up in the exception
+		Process p = new ProcessBuilder(cmd).redirectInput(ProcessBuilder.Redirect.INHERIT)
+				.redirectErrorStream(true).start();
+		StringBuilder result = new StringBuilder();
+		try (InputStream in = p.getInputStream()) {
+			int c;
+			while ((c = in.read()) != -1) result.append((char) c);
+		}
+		int status;
+		try {
+			status = p.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for stty");
+		}
+		if (status != 0) {
+			throw new IOException("Can't set up the terminal (is stdin a terminal?): "+result.toString().trim());
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,223 @@
+package devmas.chip8;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** Scales the 64x32 screen up into an image, smoothing the edges of the pixels.
+ *
+ * Every output pixel only depends on the 3x3 block of screen pixels around it, and since each
+ * screen pixel is on or off there are only 512 such blocks. So the filter is worked out once
+ * for all 512 blocks when the upscaler is created, and scaling a pixel is then just a table
+ * lookup. Only the rows of the screen that changed since the last frame are scaled again, and
+ * if there are many of them they are split into bands that are scaled in parallel. */
+public class Upscaler {
+
+	/** The different ways of scaling pixels up. */
+	public enum Filter {
+		/** Big square pixels, the same as just drawing a rectangle for each pixel */
+		NEAREST,
+		/** The Scale2x (EPX) rule: a corner of a pixel is cut off (or filled in) along the
+		 * diagonal when the two pixels next to that corner agree and the other two don't.
+		 * At 2x this is exactly Scale2x; at bigger sizes the diagonal gets smoother. */
+		SCALE2X,
+		/** Like SCALE2X, except the corners are rounded off instead of cut straight */
+		ROUNDED
+	}
+
+	/** The width and height of the Chip-8 screen */
+	private static final int WIDTH = 64, HEIGHT = 32;
+
+	/** Don't bother with other threads for fewer dirty rows than this */
+	private static final int MIN_PARALLEL_ROWS = 8;
+
+	/** Threads shared by all upscalers */
+	private static ExecutorService threads;
+
+	/** How many output pixels each screen pixel becomes, in each direction (at most 32) */
+	public final int scale;
+
+	/** The scaled image, one int (0xRRGGBB) per pixel, 64*scale wide and 32*scale high */
+	public final int[] pixels;
+
+	/** The colours of pixels that are on and off */
+	private final int onColor, offColor;
+
+	/** The lookup table. For 3x3 block n, the bits of entry n*scale + y say which pixels of row
+	 * y of the scaled pixel are on, with the leftmost pixel in bit scale-1. */
+	private final int[] table;
+
+	/** The screen rows scaled last time, one bit per pixel with x = 0 in the top bit */
+	private final long[] lastRows = new long[HEIGHT];
+	private final long[] rows = new long[HEIGHT];
+
+	/** Whether the whole image has to be redrawn next time */
+	private boolean allDirty = true;
+
+	/** The largest scale the smoothing filters can do */
+	public static final int MAX_SCALE = 32;
+
+	public Upscaler(Filter filter, int scale, int onColor, int offColor) {
+		this(filter, scale, onColor, offColor, new int[WIDTH*scale * HEIGHT*scale]);
+	}
+
+	/** Creates an upscaler drawing into the given array, e.g. the pixels of a BufferedImage. */
+	public Upscaler(Filter filter, int scale, int onColor, int offColor, int[] pixels) {
+		if (scale < 1 || scale > MAX_SCALE) throw new IllegalArgumentException("Scale must be 1 to "+MAX_SCALE);
+		if (pixels.length != WIDTH*scale * HEIGHT*scale) throw new IllegalArgumentException("Wrong image size");
+		this.scale = scale;
+		this.pixels = pixels;
+		this.onColor = onColor;
+		this.offColor = offColor;
+		this.table = makeTable(filter, scale);
+	}
+
+
+	/** Works out the scaled pixel for each of the 512 possible 3x3 blocks.
+	 * The blocks are numbered with the bits  A B C / D E F / G H I  from bit 8 down to bit 0,
+	 * so E (bit 4) is the pixel being scaled. */
+	private static int[] makeTable(Filter filter, int scale) {
+		int[] table = new int[512*scale];
+		for (int n = 0; n < 512; n++) {
+			boolean b = (n & 0x080) != 0, d = (n & 0x020) != 0, e = (n & 0x010) != 0;
+			boolean f = (n & 0x008) != 0, h = (n & 0x002) != 0;
+			for (int y = 0; y < scale; y++) {
+				int rowBits = 0;
+				for (int x = 0; x < scale; x++) {
+					//Where in the screen pixel this output pixel is, from 0 to 1
+					double u = (x + 0.5) / scale, v = (y + 0.5) / scale;
+					boolean px = e;
+					if (filter != Filter.NEAREST) {
+						//The Scale2x rule for each corner, with the quarter of the pixel nearest
+						// that corner taking the colour of the neighbours if the rule says so
+						if (u < 0.5 && v < 0.5 && d == b && b != f && d != h && inCorner(filter, u, v)) px = d;
+						if (u > 0.5 && v < 0.5 && b == f && b != d && f != h && inCorner(filter, 1-u, v)) px = f;
+						if (u < 0.5 && v > 0.5 && d == h && d != b && h != f && inCorner(filter, u, 1-v)) px = d;
+						if (u > 0.5 && v > 0.5 && h == f && d != h && b != f && inCorner(filter, 1-u, 1-v)) px = f;
+					}
+					if (px) rowBits |= 1 << (scale-1-x);
+				}
+				table[n*scale + y] = rowBits;
+			}
+		}
+		return table;
+	}
+
+	/** Whether a point at (u, v) from a corner is part of the area that gets changed */
+	private static boolean inCorner(Filter filter, double u, double v) {
+		if (filter == Filter.ROUNDED) return (0.5-u)*(0.5-u) + (0.5-v)*(0.5-v) >= 0.25;
+		return u + v <= 0.5;
+	}
+
+
+	/** Scales the screen into the pixels array. Only the rows that changed since last time (and the
+	 * rows next to them, since their edges depend on them) are redrawn. */
+	public void render(byte[] screen) {
+
+		//Pack each row of the screen into a long and see which ones changed
+		long dirty = 0;
+		for (int y = 0; y < HEIGHT; y++) {
+			long row = 0;
+			for (int i = 0; i < 8; i++) row = (row << 8) | (screen[y*8 + i] & 0xFF);
+			rows[y] = row;
+			if (row != lastRows[y] || allDirty) dirty |= 7L << y >>> 1; //rows y-1, y and y+1
+		}
+		dirty &= (1L << HEIGHT) - 1;
+		allDirty = false;
+		if (dirty == 0) return;
+
+		int[] dirtyRows = new int[Long.bitCount(dirty)];
+		for (int i = 0, y = 0; y < HEIGHT; y++) {
+			if ((dirty >>> y & 1) != 0) dirtyRows[i++] = y;
+		}
+
+		if (dirtyRows.length < MIN_PARALLEL_ROWS) renderRows(dirtyRows, 0, dirtyRows.length);
+		else renderParallel(dirtyRows);
+
+		System.arraycopy(rows, 0, lastRows, 0, HEIGHT);
+	}
+
+	/** Splits the rows into one band per processor and scales the bands at the same time. */
+	private void renderParallel(final int[] dirtyRows) {
+		int bands = Math.min(Runtime.getRuntime().availableProcessors(), dirtyRows.length / (MIN_PARALLEL_ROWS/2));
+		if (bands <= 1) {
+			renderRows(dirtyRows, 0, dirtyRows.length);
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(bands);
+		for (int band = 0; band < bands; band++) {
+			final int start = dirtyRows.length * band / bands;
+			final int end = dirtyRows.length * (band+1) / bands;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					renderRows(dirtyRows, start, end);
+					return null;
+				}
+			});
+		}
+
+		try {
+			for (Future<Void> result : getThreads().invokeAll(tasks)) result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** Scales the screen rows dirtyRows[start] to dirtyRows[end-1]. */
+	private void renderRows(int[] dirtyRows, int start, int end) {
+		int width = WIDTH*scale;
+		for (int r = start; r < end; r++) {
+			int y = dirtyRows[r];
+			long above = y > 0 ? rows[y-1] : 0;
+			long row = rows[y];
+			long below = y < HEIGHT-1 ? rows[y+1] : 0;
+
+			//n holds the 3x3 block around x. Moving one pixel right shifts each row of the block
+			// left by one and brings in the next column on the right.
+			int n = column(above, row, below, 0);
+			for (int x = 0; x < WIDTH; x++) {
+				n = ((n << 1) & 0x1B6) | column(above, row, below, x+1);
+
+				int out = y*scale*width + x*scale;
+				for (int sy = 0; sy < scale; sy++, out += width) {
+					int bits = table[n*scale + sy];
+					for (int sx = 0; sx < scale; sx++) {
+						pixels[out + sx] = (bits >>> (scale-1-sx) & 1) != 0 ? onColor : offColor;
+					}
+				}
+			}
+		}
+	}
+
+	/** Returns the pixels at x of the three rows as the bits of the right column (C, F and I) of
+	 * a 3x3 block. Pixels off the edge of the screen are off. */
+	private static int column(long above, long row, long below, int x) {
+		if (x < 0 || x >= WIDTH) return 0;
+		int shift = WIDTH-1-x;
+		return (int) ((above >>> shift & 1) << 6 | (row >>> shift & 1) << 3 | (below >>> shift & 1));
+	}
+
+	private static synchronized ExecutorService getThreads() {
+		if (threads == null) {
+			threads = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Upscaler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return threads;
+	}
+
+}